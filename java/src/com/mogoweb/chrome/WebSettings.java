@@ -1291,4 +1291,47 @@ public abstract class WebSettings {
     public int getCacheMode() {
         throw new MustOverrideException();
     }
+
+    /**
+     * Sets how many bytes of the responses returned by
+     * {@link WebViewClient#shouldInterceptRequest} may be kept in memory and
+     * served again for the same URL without calling the client. Cached
+     * responses are dropped when the system reports memory pressure. The
+     * default value is 0, which disables the cache.
+     *
+     * @param bytes the maximum total size of the cached response bodies
+     */
+    public void setInterceptedResponseCacheSize(long bytes) {
+        throw new MustOverrideException();
+    }
+
+    /**
+     * Gets the size of the intercepted response cache.
+     *
+     * @return the maximum total size of the cached response bodies
+     * @see #setInterceptedResponseCacheSize
+     */
+    public long getInterceptedResponseCacheSize() {
+        throw new MustOverrideException();
+    }
+
+    /**
+     * Starts a batch of settings changes. The values set until the matching
+     * {@link #commit} are applied to the WebView together, which is much
+     * cheaper than applying each one as it is set, for example when
+     * configuring a newly created WebView. Batches may be nested; the changes
+     * are applied when the outermost batch is committed.
+     */
+    public void beginUpdate() {
+        throw new MustOverrideException();
+    }
+
+    /**
+     * Ends a batch of settings changes started with {@link #beginUpdate}.
+     *
+     * @throws IllegalStateException if there is no batch to end
+     */
+    public void commit() {
+        throw new MustOverrideException();
+    }
 }
@@ -20,6 +20,7 @@
 package com.mogoweb.chrome;
 
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.chromium.content.browser.LoadUrlParams;
 
@@ -1451,6 +1452,151 @@ public class WebView extends AbsoluteLayout {
         return mProvider.zoomOut();
     }
 
+    //-------------------------------------------------------------------------
+    // Non-blocking queries
+    //-------------------------------------------------------------------------
+
+    // Unlike the methods above, these may be called from any thread. The returned future is
+    // completed on the WebView's thread once it gets to the query, so calling them never waits
+    // for that thread to become idle.
+
+    /**
+     * Gets the SSL certificate for the main top-level page without blocking.
+     *
+     * @return a future for the result of {@link #getCertificate}
+     */
+    public Future<SslCertificate> getCertificateAsync() {
+        return mProvider.getCertificateAsync();
+    }
+
+    /**
+     * Retrieves HTTP authentication credentials for a given host and realm
+     * without blocking.
+     *
+     * @return a future for the result of {@link #getHttpAuthUsernamePassword}
+     */
+    public Future<String[]> getHttpAuthUsernamePasswordAsync(String host, String realm) {
+        return mProvider.getHttpAuthUsernamePasswordAsync(host, realm);
+    }
+
+    /**
+     * Gets whether this WebView has a back history item without blocking.
+     *
+     * @return a future for the result of {@link #canGoBack}
+     */
+    public Future<Boolean> canGoBackAsync() {
+        return mProvider.canGoBackAsync();
+    }
+
+    /**
+     * Gets whether this WebView has a forward history item without blocking.
+     *
+     * @return a future for the result of {@link #canGoForward}
+     */
+    public Future<Boolean> canGoForwardAsync() {
+        return mProvider.canGoForwardAsync();
+    }
+
+    /**
+     * Gets whether the page can go back or forward the given number of steps
+     * without blocking.
+     *
+     * @return a future for the result of {@link #canGoBackOrForward}
+     */
+    public Future<Boolean> canGoBackOrForwardAsync(int steps) {
+        return mProvider.canGoBackOrForwardAsync(steps);
+    }
+
+    /**
+     * Gets the URL for the current page without blocking.
+     *
+     * @return a future for the result of {@link #getUrl}
+     */
+    public Future<String> getUrlAsync() {
+        return mProvider.getUrlAsync();
+    }
+
+    /**
+     * Gets the original URL for the current page without blocking.
+     *
+     * @return a future for the result of {@link #getOriginalUrl}
+     */
+    public Future<String> getOriginalUrlAsync() {
+        return mProvider.getOriginalUrlAsync();
+    }
+
+    /**
+     * Gets the title for the current page without blocking.
+     *
+     * @return a future for the result of {@link #getTitle}
+     */
+    public Future<String> getTitleAsync() {
+        return mProvider.getTitleAsync();
+    }
+
+    /**
+     * Gets the WebBackForwardList for this WebView without blocking.
+     *
+     * @return a future for the result of {@link #copyBackForwardList}
+     */
+    public Future<WebBackForwardList> copyBackForwardListAsync() {
+        return mProvider.copyBackForwardListAsync();
+    }
+
+    /**
+     * Gets how many calls made from other threads have blocked waiting for the
+     * WebView's thread. Callers that show up here can move to the non-blocking
+     * variants.
+     *
+     * @return the number of blocking cross-thread calls made on this WebView
+     */
+    public long getBlockingCallCount() {
+        return mProvider.getBlockingCallCount();
+    }
+
+    /**
+     * Gets how many calls made before the WebView finished starting, or from
+     * other threads, are still waiting to run on the WebView's thread.
+     *
+     * @return the number of queued calls
+     */
+    public int getPendingCallCount() {
+        return mProvider.getPendingCallCount();
+    }
+
+    /**
+     * Gets the average time queued calls waited before running on the
+     * WebView's thread.
+     *
+     * @return the average wait in milliseconds
+     * @see #getPendingCallCount
+     */
+    public long getAverageQueuedCallLatencyMs() {
+        return mProvider.getAverageQueuedCallLatencyMs();
+    }
+
+    /**
+     * Gets the longest time a queued call waited before running on the
+     * WebView's thread.
+     *
+     * @return the longest wait in milliseconds
+     * @see #getPendingCallCount
+     */
+    public long getMaxQueuedCallLatencyMs() {
+        return mProvider.getMaxQueuedCallLatencyMs();
+    }
+
+    /**
+     * Gets how many queued calls were dropped because a later call of the
+     * same kind, such as another size change, replaced them before they ran.
+     *
+     * @return the number of merged calls
+     * @see #getPendingCallCount
+     */
+    public long getMergedCallCount() {
+        return mProvider.getMergedCallCount();
+    }
+
     //-------------------------------------------------------------------------
     // Interface for WebView providers
     //-------------------------------------------------------------------------
@@ -101,6 +101,24 @@ public class WebViewClient {
         return null;
     }
 
+    /**
+     * Notify the host application of a resource request before
+     * {@link #shouldInterceptRequest} is called. Returning true claims the
+     * resource: shouldInterceptRequest is then called on a worker thread so
+     * that a slow response does not hold up other loads, and a null return
+     * value from it results in an empty response rather than a network load.
+     * NOTE: This method is called by the network thread and must return
+     * quickly.
+     *
+     * @param view The {@link WebView} that is requesting the resource.
+     * @param url The raw url of the resource.
+     * @return True if shouldInterceptRequest should be called asynchronously
+     *         for this url.
+     */
+    public boolean shouldInterceptRequestAsync(WebView view, String url) {
+        return false;
+    }
+
     // These ints must match up to the hidden values in EventHandler.
     /** Generic error */
     public static final int ERROR_UNKNOWN = -1;
@@ -509,6 +509,26 @@ public class ContentSettingsAdapter extends com.mogoweb.chrome.WebSettings {
         return mAwSettings.getCacheMode();
     }
 
+    @Override
+    public void setInterceptedResponseCacheSize(long bytes) {
+        mAwSettings.setInterceptedResponseCacheSize(bytes);
+    }
+
+    @Override
+    public long getInterceptedResponseCacheSize() {
+        return mAwSettings.getInterceptedResponseCacheSize();
+    }
+
+    @Override
+    public void beginUpdate() {
+        mAwSettings.beginUpdate();
+    }
+
+    @Override
+    public void commit() {
+        mAwSettings.commit();
+    }
+
     @Override
     public void setMediaPlaybackRequiresUserGesture(boolean require) {
         mAwSettings.setMediaPlaybackRequiresUserGesture(require);
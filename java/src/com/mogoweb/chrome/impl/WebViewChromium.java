@@ -22,13 +22,16 @@ package com.mogoweb.chrome.impl;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.lang.annotation.Annotation;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.chromium.android_webview.AwContents;
 import org.chromium.android_webview.AwPrintDocumentAdapter;
@@ -41,6 +44,7 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Picture;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.http.SslCertificate;
@@ -48,6 +52,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.print.PrintDocumentAdapter;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -84,40 +89,183 @@ import com.mogoweb.chrome.WebViewClient;
 class WebViewChromium implements WebViewProvider,
           WebViewProvider.ScrollDelegate, WebViewProvider.ViewDelegate {
 
+    /**
+     * Queues API calls that have to run on the UI thread once the engine has started. Calls
+     * made off the UI thread are drained in batches, one Looper message at a time, each bounded
+     * by a time budget, instead of one message per call. A call that carries the same key as a
+     * pending one replaces it and is queued behind every call made in between, so calls still
+     * run in the order they were last made. Higher priority calls run first; calls of equal
+     * priority keep their order.
+     */
     private class WebViewChromiumRunQueue {
+        // Must run before anything else, e.g. creating the AwContents.
+        static final int PRIORITY_HIGH = 0;
+        // Regular API calls, run in the order they were made.
+        static final int PRIORITY_NORMAL = 1;
+        // State that is only looked at when drawing, e.g. scrollbar styles.
+        static final int PRIORITY_LOW = 2;
+        private static final int PRIORITY_COUNT = 3;
+
+        // How long a posted drain may run before yielding the Looper to other messages.
+        private static final long DRAIN_BUDGET_MS = 8;
+
+        private class QueuedTask {
+            final Runnable mTask;
+            final Object mKey;
+            final long mEnqueueTimeMs;
+
+            QueuedTask(Runnable task, Object key, long enqueueTimeMs) {
+                mTask = task;
+                mKey = key;
+                mEnqueueTimeMs = enqueueTimeMs;
+            }
+        }
+
+        private final Object mLock = new Object();
+        private final List<ArrayDeque<QueuedTask>> mQueues =
+                new ArrayList<ArrayDeque<QueuedTask>>(PRIORITY_COUNT);
+        private final Map<Object, QueuedTask> mKeyedTasks = new HashMap<Object, QueuedTask>();
+        private int mSize;
+        private boolean mDrainPosted;
+
+        // Metrics, guarded by mLock.
+        private long mTasksRun;
+        private long mTasksSuperseded;
+        private long mTotalLatencyMs;
+        private long mMaxLatencyMs;
+
+        private final Runnable mDrainRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    mDrainPosted = false;
+                }
+                drain(DRAIN_BUDGET_MS);
+            }
+        };
+
         public WebViewChromiumRunQueue() {
-            mQueue = new ConcurrentLinkedQueue<Runnable>();
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                mQueues.add(new ArrayDeque<QueuedTask>());
+            }
         }
 
         public void addTask(Runnable task) {
-            mQueue.add(task);
-            if (mFactory.hasStarted()) {
-                ThreadUtils.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        drainQueue();
+            addTask(task, PRIORITY_NORMAL, null);
+        }
+
+        /**
+         * @param key If not null, a pending task with the same key is dropped and |task| is
+         *            queued at the end instead. Its latency counts from the dropped task.
+         */
+        public void addTask(Runnable task, int priority, Object key) {
+            synchronized (mLock) {
+                long enqueueTimeMs = SystemClock.uptimeMillis();
+                QueuedTask pending = key != null ? mKeyedTasks.remove(key) : null;
+                if (pending != null) {
+                    for (ArrayDeque<QueuedTask> queue : mQueues) {
+                        if (queue.removeFirstOccurrence(pending)) break;
                     }
-                });
+                    enqueueTimeMs = pending.mEnqueueTimeMs;
+                    mTasksSuperseded++;
+                    mSize--;
+                }
+                QueuedTask queued = new QueuedTask(task, key, enqueueTimeMs);
+                mQueues.get(priority).add(queued);
+                if (key != null) mKeyedTasks.put(key, queued);
+                mSize++;
+            }
+            // Checked outside mLock, as the factory calls drainQueue() with its own lock held.
+            if (!mFactory.hasStarted()) return;
+            if (ThreadUtils.runningOnUiThread()) {
+                drainQueue();
+            } else {
+                scheduleDrain();
             }
         }
 
+        /**
+         * Runs every queued task, including ones queued while draining.
+         */
         public void drainQueue() {
-            if (mQueue == null || mQueue.isEmpty()) {
-                return;
+            drain(0);
+        }
+
+        public int getQueueLength() {
+            synchronized (mLock) {
+                return mSize;
+            }
+        }
+
+        public long getAverageLatencyMs() {
+            synchronized (mLock) {
+                return mTasksRun == 0 ? 0 : mTotalLatencyMs / mTasksRun;
             }
+        }
+
+        public long getMaxLatencyMs() {
+            synchronized (mLock) {
+                return mMaxLatencyMs;
+            }
+        }
 
-            Runnable task = mQueue.poll();
-            while(task != null) {
+        public long getSupersededTaskCount() {
+            synchronized (mLock) {
+                return mTasksSuperseded;
+            }
+        }
+
+        private void scheduleDrain() {
+            synchronized (mLock) {
+                if (mDrainPosted || mSize == 0) return;
+                mDrainPosted = true;
+            }
+            ThreadUtils.postOnUiThread(mDrainRunnable);
+        }
+
+        // A |budgetMs| of 0 drains the whole queue.
+        private void drain(long budgetMs) {
+            long startTimeMs = SystemClock.uptimeMillis();
+            while (true) {
+                Runnable task;
+                synchronized (mLock) {
+                    QueuedTask queued = pollLocked();
+                    if (queued == null) return;
+                    long latencyMs = SystemClock.uptimeMillis() - queued.mEnqueueTimeMs;
+                    mTasksRun++;
+                    mTotalLatencyMs += latencyMs;
+                    mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+                    task = queued.mTask;
+                }
                 task.run();
-                task = mQueue.poll();
+                if (budgetMs > 0 && SystemClock.uptimeMillis() - startTimeMs >= budgetMs) {
+                    scheduleDrain();
+                    return;
+                }
             }
         }
 
-        private Queue<Runnable> mQueue;
+        private QueuedTask pollLocked() {
+            for (ArrayDeque<QueuedTask> queue : mQueues) {
+                QueuedTask queued = queue.poll();
+                if (queued == null) continue;
+                if (queued.mKey != null) mKeyedTasks.remove(queued.mKey);
+                mSize--;
+                return queued;
+            }
+            return null;
+        }
     }
 
     private WebViewChromiumRunQueue mRunQueue;
 
+    // The number of calls that blocked in runBlockingFuture.
+    private final AtomicLong mBlockingCallCount = new AtomicLong();
+
+    // The old size of the earliest onSizeChanged() call still queued.
+    private final Object mQueuedSizeChangeLock = new Object();
+    private Point mQueuedOldSize;
+
     private static final String TAG = WebViewChromium.class.getSimpleName();
 
     // The WebView that this WebViewChromium is the provider for.
@@ -164,6 +312,7 @@ class WebViewChromium implements WebViewProvider,
         if (ThreadUtils.runningOnUiThread()) {
             throw new IllegalStateException("This method should only be called off the UI thread");
         }
+        mBlockingCallCount.incrementAndGet();
         mRunQueue.addTask(task);
         try {
             return task.get(4, TimeUnit.SECONDS);
@@ -187,6 +336,20 @@ class WebViewChromium implements WebViewProvider,
         return runBlockingFuture(new FutureTask<T>(c));
     }
 
+    // Starts the engines like the blocking variants, so that the queue is eventually drained,
+    // but never waits for the task itself: off the UI thread it is queued and the returned
+    // future completes once the queue runs it.
+    private <T> Future<T> runOnUiThreadAsync(Callable<T> c) {
+        mFactory.startYourEngines(true);
+        FutureTask<T> task = new FutureTask<T>(c);
+        if (checkNeedsPost()) {
+            mRunQueue.addTask(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
     // WebViewProvider methods --------------------------------------------------------------------
 
     @Override
@@ -243,7 +406,7 @@ class WebViewChromium implements WebViewProvider,
                         destroy();
                     }
                 }
-        });
+        }, WebViewChromiumRunQueue.PRIORITY_HIGH, null);
     }
 
     private void initForReal() {
@@ -298,7 +461,7 @@ class WebViewChromium implements WebViewProvider,
                 public void run() {
                     setHorizontalScrollbarOverlay(overlay);
                 }
-            });
+            }, WebViewChromiumRunQueue.PRIORITY_LOW, "setHorizontalScrollbarOverlay");
             return;
         }
         mAwContents.setHorizontalScrollbarOverlay(overlay);
@@ -312,7 +475,7 @@ class WebViewChromium implements WebViewProvider,
                 public void run() {
                     setVerticalScrollbarOverlay(overlay);
                 }
-            });
+            }, WebViewChromiumRunQueue.PRIORITY_LOW, "setVerticalScrollbarOverlay");
             return;
         }
         mAwContents.setVerticalScrollbarOverlay(overlay);
@@ -438,7 +601,7 @@ class WebViewChromium implements WebViewProvider,
                 public void run() {
                     setNetworkAvailable(networkUp);
                 }
-            });
+            }, WebViewChromiumRunQueue.PRIORITY_NORMAL, "setNetworkAvailable");
             return;
         }
         mAwContents.setNetworkAvailable(networkUp);
@@ -1406,6 +1569,123 @@ class WebViewChromium implements WebViewProvider,
         return null;
     }
 
+    // Non-blocking queries ------------------------------------------------------------------------
+
+    @Override
+    public Future<SslCertificate> getCertificateAsync() {
+        return runOnUiThreadAsync(new Callable<SslCertificate>() {
+            @Override
+            public SslCertificate call() {
+                return getCertificate();
+            }
+        });
+    }
+
+    @Override
+    public Future<String[]> getHttpAuthUsernamePasswordAsync(final String host, final String realm) {
+        return runOnUiThreadAsync(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return getHttpAuthUsernamePassword(host, realm);
+            }
+        });
+    }
+
+    @Override
+    public Future<Boolean> canGoBackAsync() {
+        return runOnUiThreadAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return canGoBack();
+            }
+        });
+    }
+
+    @Override
+    public Future<Boolean> canGoForwardAsync() {
+        return runOnUiThreadAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return canGoForward();
+            }
+        });
+    }
+
+    @Override
+    public Future<Boolean> canGoBackOrForwardAsync(final int steps) {
+        return runOnUiThreadAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return canGoBackOrForward(steps);
+            }
+        });
+    }
+
+    @Override
+    public Future<String> getUrlAsync() {
+        return runOnUiThreadAsync(new Callable<String>() {
+            @Override
+            public String call() {
+                return getUrl();
+            }
+        });
+    }
+
+    @Override
+    public Future<String> getOriginalUrlAsync() {
+        return runOnUiThreadAsync(new Callable<String>() {
+            @Override
+            public String call() {
+                return getOriginalUrl();
+            }
+        });
+    }
+
+    @Override
+    public Future<String> getTitleAsync() {
+        return runOnUiThreadAsync(new Callable<String>() {
+            @Override
+            public String call() {
+                return getTitle();
+            }
+        });
+    }
+
+    @Override
+    public Future<WebBackForwardList> copyBackForwardListAsync() {
+        return runOnUiThreadAsync(new Callable<WebBackForwardList>() {
+            @Override
+            public WebBackForwardList call() {
+                return copyBackForwardList();
+            }
+        });
+    }
+
+    @Override
+    public long getBlockingCallCount() {
+        return mBlockingCallCount.get();
+    }
+
+    @Override
+    public int getPendingCallCount() {
+        return mRunQueue.getQueueLength();
+    }
+
+    @Override
+    public long getAverageQueuedCallLatencyMs() {
+        return mRunQueue.getAverageLatencyMs();
+    }
+
+    @Override
+    public long getMaxQueuedCallLatencyMs() {
+        return mRunQueue.getMaxLatencyMs();
+    }
+
+    @Override
+    public long getMergedCallCount() {
+        return mRunQueue.getSupersededTaskCount();
+    }
+
     // WebViewProvider glue methods ---------------------------------------------------------------
 
     @Override
@@ -1518,7 +1798,7 @@ class WebViewChromium implements WebViewProvider,
                 public void run() {
                     setOverScrollMode(mode);
                 }
-            });
+            }, WebViewChromiumRunQueue.PRIORITY_LOW, "setOverScrollMode");
             return;
         }
         mAwContents.setOverScrollMode(mode);
@@ -1532,7 +1812,7 @@ class WebViewChromium implements WebViewProvider,
                 public void run() {
                     setScrollBarStyle(style);
                 }
-            });
+            }, WebViewChromiumRunQueue.PRIORITY_LOW, "setScrollBarStyle");
             return;
         }
         mAwContents.setScrollBarStyle(style);
@@ -1770,12 +2050,28 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void onSizeChanged(final int w, final int h, final int ow, final int oh) {
         if (checkNeedsPost()) {
+            // Queued calls are merged into the last one, which has to report the old size from
+            // before the first of them.
+            synchronized (mQueuedSizeChangeLock) {
+                if (mQueuedOldSize == null) mQueuedOldSize = new Point(ow, oh);
+            }
             mRunQueue.addTask(new Runnable() {
                 @Override
                 public void run() {
-                    onSizeChanged(w, h, ow, oh);
+                    Point oldSize;
+                    synchronized (mQueuedSizeChangeLock) {
+                        oldSize = mQueuedOldSize;
+                        mQueuedOldSize = null;
+                    }
+                    // Null if the previous call ran between queuing this one and recording
+                    // its old size, which then already is |ow| x |oh|.
+                    if (oldSize == null) {
+                        onSizeChanged(w, h, ow, oh);
+                    } else {
+                        onSizeChanged(w, h, oldSize.x, oldSize.y);
+                    }
                 }
-            });
+            }, WebViewChromiumRunQueue.PRIORITY_NORMAL, "onSizeChanged");
             return;
         }
         mAwContents.onSizeChanged(w, h, ow, oh);
@@ -1902,12 +2198,12 @@ class WebViewChromium implements WebViewProvider,
     public void setBackgroundColor(final int color) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
-            ThreadUtils.postOnUiThread(new Runnable() {
+            mRunQueue.addTask(new Runnable() {
                 @Override
                 public void run() {
                     setBackgroundColor(color);
                 }
-            });
+            }, WebViewChromiumRunQueue.PRIORITY_LOW, "setBackgroundColor");
             return;
         }
         mAwContents.setBackgroundColor(color);
@@ -285,6 +285,14 @@ public class WebViewContentsClientAdapter extends AwContentsClient {
                 response.getData());
     }
 
+    /**
+     * @see AwContentsClient#shouldInterceptRequestAsync(java.lang.String)
+     */
+    @Override
+    public boolean shouldInterceptRequestAsync(String url) {
+        return mWebViewClient.shouldInterceptRequestAsync(mWebView, url);
+    }
+
     /**
      * @see AwContentsClient#shouldOverrideUrlLoading(java.lang.String)
      */
@@ -22,6 +22,7 @@ package com.mogoweb.chrome.impl;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
@@ -253,6 +254,53 @@ public interface WebViewProvider {
 
     public View findHierarchyView(String className, int hashCode);
 
+    //-------------------------------------------------------------------------
+    // Non-blocking variants of the query methods, callable from any thread
+    //-------------------------------------------------------------------------
+
+    public Future<SslCertificate> getCertificateAsync();
+
+    public Future<String[]> getHttpAuthUsernamePasswordAsync(String host, String realm);
+
+    public Future<Boolean> canGoBackAsync();
+
+    public Future<Boolean> canGoForwardAsync();
+
+    public Future<Boolean> canGoBackOrForwardAsync(int steps);
+
+    public Future<String> getUrlAsync();
+
+    public Future<String> getOriginalUrlAsync();
+
+    public Future<String> getTitleAsync();
+
+    public Future<WebBackForwardList> copyBackForwardListAsync();
+
+    /**
+     * @return The number of calls from other threads that blocked waiting for the UI thread.
+     */
+    public long getBlockingCallCount();
+
+    /**
+     * @return The number of calls queued until the UI thread gets to them.
+     */
+    public int getPendingCallCount();
+
+    /**
+     * @return The average time calls spent queued, in milliseconds.
+     */
+    public long getAverageQueuedCallLatencyMs();
+
+    /**
+     * @return The longest time a call spent queued, in milliseconds.
+     */
+    public long getMaxQueuedCallLatencyMs();
+
+    /**
+     * @return The number of queued calls dropped because a later call replaced them.
+     */
+    public long getMergedCallCount();
+
     //-------------------------------------------------------------------------
     // Provider internal methods
     //-------------------------------------------------------------------------
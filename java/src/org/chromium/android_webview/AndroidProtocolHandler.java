@@ -4,8 +4,11 @@
 
 package org.chromium.android_webview;
 
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
+import android.content.res.Resources;
 import android.net.Uri;
 import android.util.Log;
 import android.util.TypedValue;
@@ -17,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLConnection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements the Java side of Android URL protocol jobs.
@@ -31,6 +35,14 @@ public class AndroidProtocolHandler {
     private static final String FILE_SCHEME = "file";
     private static final String CONTENT_SCHEME = "content";
 
+    // Resources at least this large are served from a memory mapping when they are stored
+    // uncompressed; for smaller ones setting up the mapping costs more than it saves.
+    private static final long MIN_MAPPED_LENGTH = 32 * 1024;
+
+    // How each opened resource is being served; see getMappedOpenCount().
+    private static final AtomicInteger sMappedOpenCount = new AtomicInteger();
+    private static final AtomicInteger sStreamOpenCount = new AtomicInteger();
+
     /**
      * Open an InputStream for an Android resource.
      * @param context The context manager.
@@ -47,12 +59,12 @@ public class AndroidProtocolHandler {
             String path = uri.getPath();
             if (uri.getScheme().equals(FILE_SCHEME)) {
                 if (path.startsWith(nativeGetAndroidAssetPath())) {
-                    return openAsset(context, uri);
+                    return recordOpen(openAsset(context, uri));
                 } else if (path.startsWith(nativeGetAndroidResourcePath())) {
-                    return openResource(context, uri);
+                    return recordOpen(openResource(context, uri));
                 }
             } else if (uri.getScheme().equals(CONTENT_SCHEME)) {
-                return openContent(context, uri);
+                return recordOpen(openContent(context, uri));
             }
         } catch (Exception ex) {
             Log.e(TAG, "Error opening inputstream: " + url);
@@ -60,6 +72,49 @@ public class AndroidProtocolHandler {
         return null;
     }
 
+    /**
+     * @return The number of resources served from a memory mapping so far.
+     */
+    public static int getMappedOpenCount() {
+        return sMappedOpenCount.get();
+    }
+
+    /**
+     * @return The number of resources served from a regular stream so far.
+     */
+    public static int getStreamOpenCount() {
+        return sStreamOpenCount.get();
+    }
+
+    /**
+     * @return Whether |stream|, as returned by {@link #open}, reads from a memory mapping.
+     */
+    public static boolean isMappedStream(InputStream stream) {
+        return stream instanceof MappedInputStream;
+    }
+
+    private static InputStream recordOpen(InputStream stream) {
+        if (stream instanceof MappedInputStream) {
+            sMappedOpenCount.incrementAndGet();
+        } else if (stream != null) {
+            sStreamOpenCount.incrementAndGet();
+        }
+        return stream;
+    }
+
+    /**
+     * Maps |afd| if it is large enough to benefit, otherwise closes it.
+     * @return The mapped stream, or null if the caller should fall back to a regular stream.
+     */
+    private static InputStream mapIfLarge(AssetFileDescriptor afd) throws IOException {
+        if (afd == null) return null;
+        if (afd.getLength() < MIN_MAPPED_LENGTH) {
+            afd.close();
+            return null;
+        }
+        return MappedInputStream.map(afd);
+    }
+
     private static int getFieldId(Context context, String assetType, String assetName)
         throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException {
         Class<?> d = context.getClassLoader()
@@ -106,6 +161,15 @@ public class AndroidProtocolHandler {
             int fieldId = getFieldId(context, assetType, assetName);
             int valueType = getValueType(context, fieldId);
             if (valueType == TypedValue.TYPE_STRING) {
+                InputStream mapped = null;
+                try {
+                    mapped = mapIfLarge(context.getResources().openRawResourceFd(fieldId));
+                } catch (Resources.NotFoundException e) {
+                    // Compressed resources can't be opened as a file descriptor.
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to map resource URL: " + uri, e);
+                }
+                if (mapped != null) return mapped;
                 return context.getResources().openRawResource(fieldId);
             } else {
                 Log.e(TAG, "Asset not of type string: " + uri);
@@ -128,8 +192,14 @@ public class AndroidProtocolHandler {
         assert uri.getPath() != null;
         assert uri.getPath().startsWith(nativeGetAndroidAssetPath());
         String path = uri.getPath().replaceFirst(nativeGetAndroidAssetPath(), "");
+        AssetManager assets = context.getAssets();
+        try {
+            InputStream mapped = mapIfLarge(assets.openFd(path));
+            if (mapped != null) return mapped;
+        } catch (IOException e) {
+            // Compressed assets can't be opened as a file descriptor; stream them instead.
+        }
         try {
-            AssetManager assets = context.getAssets();
             return assets.open(path, AssetManager.ACCESS_STREAMING);
         } catch (IOException e) {
             Log.e(TAG, "Unable to open asset URL: " + uri);
@@ -139,6 +209,8 @@ public class AndroidProtocolHandler {
 
     private static InputStream openContent(Context context, Uri uri) {
         assert uri.getScheme().equals(CONTENT_SCHEME);
+        // Not mapped: a third-party provider can truncate the file it returned while it is
+        // being read, and reading a mapping past the end of a file raises SIGBUS.
         try {
             return context.getContentResolver().openInputStream(uri);
         } catch (Exception e) {
@@ -164,11 +236,18 @@ public class AndroidProtocolHandler {
             String path = uri.getPath();
             // The content URL type can be queried directly.
             if (uri.getScheme().equals(CONTENT_SCHEME)) {
-                return context.getContentResolver().getType(uri);
+                final ContentResolver resolver = context.getContentResolver();
+                return MimeTypeCache.getContentMimeType(uri,
+                        new MimeTypeCache.ContentTypeResolver() {
+                            @Override
+                            public String getType(Uri contentUri) {
+                                return resolver.getType(contentUri);
+                            }
+                        });
                 // Asset files may have a known extension.
             } else if (uri.getScheme().equals(FILE_SCHEME) &&
                        path.startsWith(nativeGetAndroidAssetPath())) {
-                String mimeType = URLConnection.guessContentTypeFromName(path);
+                String mimeType = MimeTypeCache.getMimeTypeForPath(path);
                 if (mimeType != null) {
                     return mimeType;
                 }
@@ -185,6 +264,21 @@ public class AndroidProtocolHandler {
         }
     }
 
+    /**
+     * Drops the cached mime types reported by the content provider for |authority|. Embedders
+     * should call this when a provider starts reporting different types for the same files.
+     */
+    public static void invalidateMimeTypeCache(String authority) {
+        MimeTypeCache.invalidateAuthority(authority);
+    }
+
+    /**
+     * Drops all cached content provider mime types.
+     */
+    public static void clearMimeTypeCache() {
+        MimeTypeCache.invalidateAll();
+    }
+
     /**
      * Make sure the given string URL is correctly formed and parse it into a Uri.
      * @return a Uri instance, or null if the URL was invalid.
@@ -0,0 +1,202 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.android_webview;
+
+import android.util.Log;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs shouldInterceptRequest callbacks off the IO thread.
+ *
+ * The IO thread only has to decide whether a URL is claimed for interception; the embedder's
+ * callback then runs on a bounded worker pool and the IO thread immediately gets back an
+ * {@link InterceptedRequestData} whose getters wait for the callback's result. The native
+ * request job only reads the response from its own worker threads, so one slow interceptor no
+ * longer stalls every other load on the page.
+ *
+ * Main-frame interceptions run on a single dedicated thread, so requests for the same URL
+ * complete in the order they were issued. When the subresource queue is full the callback is
+ * run on the calling thread, which degrades to the synchronous behavior.
+ */
+public class AsyncInterceptRequestDispatcher {
+    private static final String TAG = "AsyncInterceptRequestDispatcher";
+
+    private static final int POOL_SIZE = 4;
+    private static final int MAX_QUEUED_REQUESTS = 64;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int LATENCY_SAMPLE_COUNT = 256;
+
+    private static final Object sLock = new Object();
+    private static AsyncInterceptRequestDispatcher sInstance;
+
+    private final ThreadPoolExecutor mSubresourceExecutor;
+    private final ExecutorService mMainFrameExecutor;
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+
+    // Ring buffer of the most recent interception latencies, guarded by itself.
+    private final long[] mLatencySamplesMs = new long[LATENCY_SAMPLE_COUNT];
+    private int mLatencySampleIndex;
+    private int mLatencySampleCount;
+
+    /**
+     * @return The process-wide dispatcher, creating it on first use.
+     */
+    public static AsyncInterceptRequestDispatcher getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) sInstance = new AsyncInterceptRequestDispatcher();
+            return sInstance;
+        }
+    }
+
+    private AsyncInterceptRequestDispatcher() {
+        mSubresourceExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS),
+                new NamedThreadFactory("InterceptRequest"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        mSubresourceExecutor.allowCoreThreadTimeOut(true);
+        mMainFrameExecutor = Executors.newSingleThreadExecutor(
+                new NamedThreadFactory("InterceptMainFrame"));
+    }
+
+    /**
+     * Schedules |interceptor| and returns a response backed by its eventual result. If the
+     * interceptor returns null or fails, an empty response is served, as the request has
+     * already been claimed for interception.
+     */
+    public InterceptedRequestData dispatch(final String url, boolean isMainFrame,
+            final Callable<InterceptedRequestData> interceptor) {
+        final long submitTimeMs = System.currentTimeMillis();
+        mPendingCount.incrementAndGet();
+        FutureTask<InterceptedRequestData> task = new FutureTask<InterceptedRequestData>(
+                new Callable<InterceptedRequestData>() {
+                    @Override
+                    public InterceptedRequestData call() throws Exception {
+                        try {
+                            return interceptor.call();
+                        } finally {
+                            mPendingCount.decrementAndGet();
+                            recordLatency(System.currentTimeMillis() - submitTimeMs);
+                        }
+                    }
+                });
+        if (isMainFrame) {
+            mMainFrameExecutor.execute(task);
+        } else {
+            mSubresourceExecutor.execute(task);
+        }
+        return new FutureInterceptedRequestData(url, task);
+    }
+
+    /**
+     * @return The number of interceptions that have been scheduled but not yet completed.
+     */
+    public int getQueueDepth() {
+        return mPendingCount.get();
+    }
+
+    /**
+     * @param percentile A value in [0, 100].
+     * @return The given percentile of the recent interception latencies in milliseconds,
+     *         measured from scheduling to completion, or -1 if there are no samples yet.
+     */
+    public long getLatencyPercentileMs(double percentile) {
+        long[] samples;
+        synchronized (mLatencySamplesMs) {
+            if (mLatencySampleCount == 0) return -1;
+            samples = Arrays.copyOf(mLatencySamplesMs, mLatencySampleCount);
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+        return samples[Math.max(0, Math.min(samples.length - 1, index))];
+    }
+
+    private void recordLatency(long latencyMs) {
+        synchronized (mLatencySamplesMs) {
+            mLatencySamplesMs[mLatencySampleIndex] = latencyMs;
+            mLatencySampleIndex = (mLatencySampleIndex + 1) % LATENCY_SAMPLE_COUNT;
+            if (mLatencySampleCount < LATENCY_SAMPLE_COUNT) mLatencySampleCount++;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mPrefix + "#" + mThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * An InterceptedRequestData whose fields are resolved from a pending interception. The
+     * getters are only called by the native request job once it starts reading the response.
+     */
+    private static class FutureInterceptedRequestData extends InterceptedRequestData {
+        private final String mUrl;
+        private final FutureTask<InterceptedRequestData> mFuture;
+
+        FutureInterceptedRequestData(String url, FutureTask<InterceptedRequestData> future) {
+            super(null, null, null);
+            mUrl = url;
+            mFuture = future;
+        }
+
+        @Override
+        public String getMimeType() {
+            InterceptedRequestData data = await();
+            return data != null ? data.getMimeType() : null;
+        }
+
+        @Override
+        public String getCharset() {
+            InterceptedRequestData data = await();
+            return data != null ? data.getCharset() : null;
+        }
+
+        @Override
+        public InputStream getData() {
+            InterceptedRequestData data = await();
+            return data != null ? data.getData() : null;
+        }
+
+        private InterceptedRequestData await() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return mFuture.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                Log.e(TAG, "shouldInterceptRequest failed for " + mUrl, e.getCause());
+                return null;
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
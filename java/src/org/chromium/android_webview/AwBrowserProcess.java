@@ -5,12 +5,14 @@
 package org.chromium.android_webview;
 
 import android.content.Context;
+import android.os.AsyncTask;
 
 import org.chromium.base.PathUtils;
 import org.chromium.base.ThreadUtils;
 import org.chromium.base.library_loader.LibraryLoader;
 import org.chromium.base.library_loader.ProcessInitException;
 import org.chromium.content.browser.BrowserStartupController;
+import org.chromium.media.MediaCodecIndex;
 
 /**
  * Wrapper for the steps needed to initialize the java and native sides of webview chromium.
@@ -53,5 +55,14 @@ public abstract class AwBrowserProcess {
                 }
             }
         });
+        // Resolve the common mime types off the IO thread before the first load needs them, and
+        // index the media codecs before the first media element does.
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                MimeTypeCache.warmUp();
+                MediaCodecIndex.warmUp(context);
+            }
+        });
     }
 }
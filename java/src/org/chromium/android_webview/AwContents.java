@@ -37,6 +37,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import org.chromium.base.CalledByNative;
 import org.chromium.base.JNINamespace;
+import org.chromium.base.MemoryPressureListener;
 import org.chromium.base.ThreadUtils;
 import org.chromium.components.navigation_interception.InterceptNavigationDelegate;
 import org.chromium.components.navigation_interception.NavigationParams;
@@ -175,6 +176,10 @@ public class AwContents {
 
     private final DefaultVideoPosterRequestHandler mDefaultVideoPosterRequestHandler;
 
+    // Responses from shouldInterceptRequest kept for reuse, sized by AwSettings.
+    private final InterceptedResponseCache mInterceptedResponseCache =
+            new InterceptedResponseCache();
+
     // Bound method for suppling Picture instances to the AwContentsClient. Will be null if the
     // picture listener API has not yet been enabled, or if it is using invalidation-only mode.
     private Callable<Picture> mPictureListenerContentProvider;
@@ -228,21 +233,44 @@ public class AwContents {
 
         @Override
         public int getCacheMode() {
-            return mSettings.getCacheMode();
+            return mSettings.getSnapshot().mCacheMode;
         }
 
         @Override
         public InterceptedRequestData shouldInterceptRequest(final String url,
-                boolean isMainFrame) {
+                final boolean isMainFrame) {
             InterceptedRequestData interceptedRequestData;
             // Return the response directly if the url is default video poster url.
             interceptedRequestData = mDefaultVideoPosterRequestHandler.shouldInterceptRequest(url);
             if (interceptedRequestData != null) return interceptedRequestData;
 
-            interceptedRequestData = mContentsClient.shouldInterceptRequest(url);
+            interceptedRequestData = mInterceptedResponseCache.get(url);
+            if (interceptedRequestData != null) return interceptedRequestData;
+
+            if (mContentsClient.shouldInterceptRequestAsync(url)) {
+                // The client has claimed this url, so run the potentially slow callback on the
+                // dispatcher's worker threads instead of stalling every other load on the IO
+                // thread.
+                return AsyncInterceptRequestDispatcher.getInstance().dispatch(url, isMainFrame,
+                        new Callable<InterceptedRequestData>() {
+                            @Override
+                            public InterceptedRequestData call() {
+                                return interceptRequest(url, isMainFrame);
+                            }
+                        });
+            }
+            return interceptRequest(url, isMainFrame);
+        }
+
+        private InterceptedRequestData interceptRequest(String url, boolean isMainFrame) {
+            InterceptedRequestData interceptedRequestData =
+                    mContentsClient.shouldInterceptRequest(url);
 
             if (interceptedRequestData == null) {
                 mContentsClient.getCallbackHelper().postOnLoadResource(url);
+            } else if (mInterceptedResponseCache.isEnabled()) {
+                interceptedRequestData = mInterceptedResponseCache.put(url,
+                        interceptedRequestData);
             }
 
             if (isMainFrame && interceptedRequestData != null &&
@@ -259,17 +287,17 @@ public class AwContents {
 
         @Override
         public boolean shouldBlockContentUrls() {
-            return !mSettings.getAllowContentAccess();
+            return !mSettings.getSnapshot().mAllowContentUrlAccess;
         }
 
         @Override
         public boolean shouldBlockFileUrls() {
-            return !mSettings.getAllowFileAccess();
+            return !mSettings.getSnapshot().mAllowFileUrlAccess;
         }
 
         @Override
         public boolean shouldBlockNetworkLoads() {
-            return mSettings.getBlockNetworkLoads();
+            return mSettings.getSnapshot().mBlockNetworkLoads;
         }
 
         @Override
@@ -493,6 +521,8 @@ public class AwContents {
                 };
         mSettings.setZoomListener(zoomListener);
         mDefaultVideoPosterRequestHandler = new DefaultVideoPosterRequestHandler(mContentsClient);
+        MemoryPressureListener.addObserver(mInterceptedResponseCache);
+        mSettings.setInterceptedResponseCache(mInterceptedResponseCache);
         mSettings.setDefaultVideoPosterURL(
                 mDefaultVideoPosterRequestHandler.getDefaultVideoPosterURL());
         mSettings.setDIPScale(mDIPScale);
@@ -627,6 +657,9 @@ public class AwContents {
      */
     public void destroy() {
         if (mCleanupReference != null) {
+            MemoryPressureListener.removeObserver(mInterceptedResponseCache);
+            mInterceptedResponseCache.clear();
+
             // We explicitly do not null out the mContentViewCore reference here
             // because ContentViewCore already has code to deal with the case
             // methods are called on it after it's been destroyed, and other
@@ -662,6 +695,11 @@ public class AwContents {
         return mSettings;
     }
 
+    // Can be called from any thread.
+    public InterceptedResponseCache getInterceptedResponseCache() {
+        return mInterceptedResponseCache;
+    }
+
     public AwPdfExporter getPdfExporter() {
         // mNativeAwContents can be null, due to destroy().
         if (mNativeAwContents == 0) {
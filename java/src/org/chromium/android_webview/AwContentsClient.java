@@ -150,6 +150,16 @@ public abstract class AwContentsClient {
 
     public abstract InterceptedRequestData shouldInterceptRequest(String url);
 
+    /**
+     * Called on the IO thread before {@link #shouldInterceptRequest}. Returning true claims the
+     * url for interception: shouldInterceptRequest is then run on a worker thread and its result
+     * is served when the response is read, with a null result producing an empty response.
+     * @see AsyncInterceptRequestDispatcher
+     */
+    public boolean shouldInterceptRequestAsync(String url) {
+        return false;
+    }
+
     public abstract boolean shouldOverrideKeyEvent(KeyEvent event);
 
     public abstract boolean shouldOverrideUrlLoading(String url);
@@ -46,6 +46,8 @@ public class AwSettings {
     private final boolean mHasInternetPermission;
 
     private ZoomSupportChangeListener mZoomChangeListener;
+    // Resized whenever mInterceptedResponseCacheSize changes.
+    private InterceptedResponseCache mInterceptedResponseCache;
     private double mDIPScale = 1.0;
 
     // Lock to protect all settings.
@@ -99,6 +101,29 @@ public class AwSettings {
     private boolean mSupportZoom = true;
     private boolean mBuiltInZoomControls = false;
     private boolean mDisplayZoomControls = true;
+    private long mInterceptedResponseCacheSize = 0;
+
+    // The settings read on the IO thread for every request, republished by their setters.
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * An immutable copy of the settings that are read on the IO thread. Reading it does not
+     * take mAwSettingsLock, so network loads are never held up by a settings update.
+     */
+    static final class Snapshot {
+        final int mCacheMode;
+        final boolean mAllowContentUrlAccess;
+        final boolean mAllowFileUrlAccess;
+        final boolean mBlockNetworkLoads;
+
+        private Snapshot(AwSettings settings) {
+            assert Thread.holdsLock(settings.mAwSettingsLock);
+            mCacheMode = settings.mCacheMode;
+            mAllowContentUrlAccess = settings.mAllowContentUrlAccess;
+            mAllowFileUrlAccess = settings.mAllowFileUrlAccess;
+            mBlockNetworkLoads = settings.mBlockNetworkLoads;
+        }
+    }
 
     static class LazyDefaultUserAgent{
         // Lazy Holder pattern
@@ -125,10 +150,20 @@ public class AwSettings {
     private class EventHandler {
         // Message id for running a Runnable with mAwSettingsLock held.
         private static final int RUN_RUNNABLE_BLOCKING = 0;
+        // Message id for pushing the current settings to WebKit preferences.
+        private static final int UPDATE_WEBKIT_PREFERENCES = 1;
         // Actual UI thread handler
         private Handler mHandler;
         // Synchronization flag.
         private boolean mSynchronizationPending = false;
+        // Whether an UPDATE_WEBKIT_PREFERENCES message is queued but has not run yet.
+        private boolean mPreferencesUpdateQueued = false;
+        // The number of UPDATE_WEBKIT_PREFERENCES messages that have run.
+        private long mPreferencesUpdateCount = 0;
+        // The number of open beginUpdate() calls; native updates are deferred while nonzero.
+        private int mUpdateDepth = 0;
+        // Whether a native update was deferred by an open update.
+        private boolean mNativeUpdateDeferred = false;
 
         EventHandler() {
         }
@@ -148,6 +183,17 @@ public class AwSettings {
                                 mAwSettingsLock.notifyAll();
                             }
                             break;
+                        case UPDATE_WEBKIT_PREFERENCES:
+                            synchronized (mAwSettingsLock) {
+                                // Every change made while the message was queued is read here.
+                                mPreferencesUpdateQueued = false;
+                                if (mNativeAwSettings != 0) {
+                                    updateWebkitPreferencesOnUiThreadLocked();
+                                }
+                                mPreferencesUpdateCount++;
+                                mAwSettingsLock.notifyAll();
+                            }
+                            break;
                     }
                 }
             };
@@ -156,6 +202,7 @@ public class AwSettings {
         void runOnUiThreadBlockingAndLocked(Runnable r) {
             assert Thread.holdsLock(mAwSettingsLock);
             if (mHandler == null) return;
+            if (deferNativeUpdateLocked()) return;
             if (ThreadUtils.runningOnUiThread()) {
                 r.run();
             } else {
@@ -173,19 +220,70 @@ public class AwSettings {
             }
         }
 
+        void beginUpdateLocked() {
+            assert Thread.holdsLock(mAwSettingsLock);
+            mUpdateDepth++;
+        }
+
+        /**
+         * Closes an update opened with beginUpdateLocked(). When the outermost update closes,
+         * everything that was deferred is pushed to native with a single blocking call.
+         */
+        void commitLocked() {
+            assert Thread.holdsLock(mAwSettingsLock);
+            if (mUpdateDepth == 0) {
+                throw new IllegalStateException("commit() without beginUpdate()");
+            }
+            if (--mUpdateDepth > 0 || !mNativeUpdateDeferred) return;
+            mNativeUpdateDeferred = false;
+            runOnUiThreadBlockingAndLocked(new Runnable() {
+                @Override
+                public void run() {
+                    nativeUpdateEverythingLocked(mNativeAwSettings);
+                }
+            });
+        }
+
+        // Everything deferred is covered by the nativeUpdateEverythingLocked() call made on
+        // commit, so the deferred Runnables themselves are dropped.
+        private boolean deferNativeUpdateLocked() {
+            if (mUpdateDepth == 0) return false;
+            mNativeUpdateDeferred = true;
+            return true;
+        }
+
         void maybePostOnUiThread(Runnable r) {
             if (mHandler != null) {
                 mHandler.post(r);
             }
         }
 
+        /**
+         * Pushes the settings to WebKit preferences and waits until that is done. Setters
+         * called on other threads while an update is still queued share that update instead of
+         * each making their own round-trip to the UI thread.
+         */
         void updateWebkitPreferencesLocked() {
-            runOnUiThreadBlockingAndLocked(new Runnable() {
-                @Override
-                public void run() {
-                    updateWebkitPreferencesOnUiThreadLocked();
+            assert Thread.holdsLock(mAwSettingsLock);
+            if (mHandler == null) return;
+            if (deferNativeUpdateLocked()) return;
+            if (ThreadUtils.runningOnUiThread()) {
+                updateWebkitPreferencesOnUiThreadLocked();
+                return;
+            }
+            // The queued update, or the one sent now, is the next one to run.
+            final long target = mPreferencesUpdateCount + 1;
+            if (!mPreferencesUpdateQueued) {
+                mPreferencesUpdateQueued = true;
+                mHandler.sendMessage(Message.obtain(null, UPDATE_WEBKIT_PREFERENCES));
+            }
+            try {
+                while (mPreferencesUpdateCount < target) {
+                    mAwSettingsLock.wait();
                 }
-            });
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted waiting for WebKit preferences to update", e);
+            }
         }
     }
 
@@ -226,6 +324,7 @@ public class AwSettings {
             mTextSizePercent *= context.getResources().getConfiguration().fontScale;
 
             mSupportLegacyQuirks = supportsLegacyQuirks;
+            publishSnapshotLocked();
         }
         // Defer initializing the native side until a native WebContents instance is set.
     }
@@ -256,6 +355,13 @@ public class AwSettings {
         }
     }
 
+    void setInterceptedResponseCache(InterceptedResponseCache cache) {
+        synchronized (mAwSettingsLock) {
+            mInterceptedResponseCache = cache;
+            if (cache != null) cache.setMaxBytes(mInterceptedResponseCacheSize);
+        }
+    }
+
     void setWebContents(int nativeWebContents) {
         synchronized (mAwSettingsLock) {
             if (mNativeAwSettings != 0) {
@@ -272,6 +378,28 @@ public class AwSettings {
         }
     }
 
+    /**
+     * Starts a batch of settings changes. Until the matching {@link #commit}, setters only
+     * update the Java side; the commit then pushes every change to native in one call instead
+     * of one blocking call per setter. Batches may be nested, and changes made by any thread
+     * while a batch is open are part of it.
+     */
+    public void beginUpdate() {
+        synchronized (mAwSettingsLock) {
+            mEventHandler.beginUpdateLocked();
+        }
+    }
+
+    /**
+     * Ends a batch started with {@link #beginUpdate}, applying its changes once the outermost
+     * batch ends.
+     */
+    public void commit() {
+        synchronized (mAwSettingsLock) {
+            mEventHandler.commitLocked();
+        }
+    }
+
     /**
      * See {@link android.webkit.WebSettings#setBlockNetworkLoads}.
      */
@@ -282,6 +410,7 @@ public class AwSettings {
                         "application missing INTERNET permission");
             }
             mBlockNetworkLoads = flag;
+            publishSnapshotLocked();
         }
     }
 
@@ -289,8 +418,28 @@ public class AwSettings {
      * See {@link android.webkit.WebSettings#getBlockNetworkLoads}.
      */
     public boolean getBlockNetworkLoads() {
+        return mSnapshot.mBlockNetworkLoads;
+    }
+
+    /**
+     * Sets the number of body bytes of shouldInterceptRequest responses that may be kept in
+     * memory and served again without calling the client. 0, the default, disables caching.
+     */
+    public void setInterceptedResponseCacheSize(long bytes) {
+        synchronized (mAwSettingsLock) {
+            mInterceptedResponseCacheSize = Math.max(0, bytes);
+            if (mInterceptedResponseCache != null) {
+                mInterceptedResponseCache.setMaxBytes(mInterceptedResponseCacheSize);
+            }
+        }
+    }
+
+    /**
+     * @return The size set with {@link #setInterceptedResponseCacheSize}.
+     */
+    public long getInterceptedResponseCacheSize() {
         synchronized (mAwSettingsLock) {
-            return mBlockNetworkLoads;
+            return mInterceptedResponseCacheSize;
         }
     }
 
@@ -301,6 +450,7 @@ public class AwSettings {
         synchronized (mAwSettingsLock) {
             if (mAllowFileUrlAccess != allow) {
                 mAllowFileUrlAccess = allow;
+                publishSnapshotLocked();
             }
         }
     }
@@ -309,9 +459,7 @@ public class AwSettings {
      * See {@link android.webkit.WebSettings#getAllowFileAccess}.
      */
     public boolean getAllowFileAccess() {
-        synchronized (mAwSettingsLock) {
-            return mAllowFileUrlAccess;
-        }
+        return mSnapshot.mAllowFileUrlAccess;
     }
 
     /**
@@ -321,6 +469,7 @@ public class AwSettings {
         synchronized (mAwSettingsLock) {
             if (mAllowContentUrlAccess != allow) {
                 mAllowContentUrlAccess = allow;
+                publishSnapshotLocked();
             }
         }
     }
@@ -329,9 +478,7 @@ public class AwSettings {
      * See {@link android.webkit.WebSettings#getAllowContentAccess}.
      */
     public boolean getAllowContentAccess() {
-        synchronized (mAwSettingsLock) {
-            return mAllowContentUrlAccess;
-        }
+        return mSnapshot.mAllowContentUrlAccess;
     }
 
     /**
@@ -341,6 +488,7 @@ public class AwSettings {
         synchronized (mAwSettingsLock) {
             if (mCacheMode != mode) {
                 mCacheMode = mode;
+                publishSnapshotLocked();
             }
         }
     }
@@ -349,9 +497,19 @@ public class AwSettings {
      * See {@link android.webkit.WebSettings#getCacheMode}.
      */
     public int getCacheMode() {
-        synchronized (mAwSettingsLock) {
-            return mCacheMode;
-        }
+        return mSnapshot.mCacheMode;
+    }
+
+    /**
+     * @return The settings read on the IO thread, as of the last change. Does not block.
+     */
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    private void publishSnapshotLocked() {
+        assert Thread.holdsLock(mAwSettingsLock);
+        mSnapshot = new Snapshot(this);
     }
 
     /**
@@ -9,8 +9,15 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.os.AsyncTask;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * This database is used to support WebView's setHttpAuthUsernamePassword and
  * getHttpAuthUsernamePassword methods, and WebViewDatabase's clearHttpAuthUsernamePassword and
@@ -20,11 +27,16 @@ import android.util.Log;
  * layer, primarily for ease of testing. To line up with the classic implementation and behavior,
  * there is no specific handling and reporting when SQL errors occur.
  *
- * Note on thread-safety: As per the classic implementation, most API functions have thread safety
- * provided by the underlying SQLiteDatabase instance. The exception is database opening: this
- * is handled in the dedicated background thread, which also provides a performance gain
- * if triggered early on (e.g. as a side effect of CookieSyncManager.createInstance() call),
- * sufficiently in advance of the first blocking usage of the API.
+ * The stored credentials are loaded into an in-memory index keyed by (host, realm) when the
+ * database is opened, and all queries are answered from that index. Changes are applied to the
+ * index right away and written behind to the database on a background thread, coalescing the
+ * changes made in the meantime into a single transaction.
+ *
+ * Note on thread-safety: All API functions can be called from any thread; the index is guarded
+ * by mIndexLock. Database opening and loading the index is handled in the dedicated background
+ * thread, which also provides a performance gain if triggered early on (e.g. as a side effect of
+ * CookieSyncManager.createInstance() call), sufficiently in advance of the first blocking usage
+ * of the API. Only queries wait for it; changes are queued until the database is open.
  */
 public class HttpAuthDatabase {
 
@@ -36,10 +48,6 @@ public class HttpAuthDatabase {
 
     private static final String ID_COL = "_id";
 
-    private static final String[] ID_PROJECTION = new String[] {
-        ID_COL
-    };
-
     // column id strings for "httpauth" table
     private static final String HTTPAUTH_TABLE_NAME = "httpauth";
     private static final String HTTPAUTH_HOST_COL = "host";
@@ -54,6 +62,47 @@ public class HttpAuthDatabase {
 
     private final Object mInitializedLock = new Object();
 
+    /**
+     * The (host, realm) pair identifying a stored username and password.
+     */
+    private static final class AuthKey {
+        private final String mHost;
+        private final String mRealm;
+
+        AuthKey(String host, String realm) {
+            mHost = host;
+            mRealm = realm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AuthKey)) return false;
+            AuthKey other = (AuthKey) o;
+            return mHost.equals(other.mHost) && mRealm.equals(other.mRealm);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mHost.hashCode() + mRealm.hashCode();
+        }
+    }
+
+    // Guards the fields below.
+    private final Object mIndexLock = new Object();
+
+    // The username and password stored for each (host, realm), including changes that are not
+    // written to the database yet.
+    private final Map<AuthKey, String[]> mIndex = new HashMap<AuthKey, String[]>();
+
+    // Changes waiting to be written to the database. A pending clear is applied before the
+    // pending writes, as any write made before the clear was dropped from mPendingWrites.
+    private boolean mPendingClear = false;
+    private final Map<AuthKey, String[]> mPendingWrites = new LinkedHashMap<AuthKey, String[]>();
+    private boolean mWriteScheduled = false;
+
+    // Serializes the write-behind transactions.
+    private final Object mWriteLock = new Object();
+
     /**
      * Create an instance of HttpAuthDatabase for the named file, and kick-off background
      * initialization of that database.
@@ -83,6 +132,7 @@ public class HttpAuthDatabase {
             }
 
             initDatabase(context, databaseFile);
+            if (mDatabase != null) loadIndex();
 
             // Thread done, notify.
             mInitialized = true;
@@ -135,6 +185,110 @@ public class HttpAuthDatabase {
         mDatabase.setVersion(DATABASE_VERSION);
     }
 
+    /**
+     * Loads the stored credentials into mIndex. Changes made before the load completed take
+     * precedence over the stored values.
+     */
+    private void loadIndex() {
+        final String[] columns = new String[] {
+            HTTPAUTH_HOST_COL, HTTPAUTH_REALM_COL, HTTPAUTH_USERNAME_COL, HTTPAUTH_PASSWORD_COL
+        };
+        Map<AuthKey, String[]> stored = new HashMap<AuthKey, String[]>();
+        Cursor cursor = null;
+        try {
+            cursor = mDatabase.query(HTTPAUTH_TABLE_NAME, columns, null, null, null, null, null);
+            int hostIndex = cursor.getColumnIndex(HTTPAUTH_HOST_COL);
+            int realmIndex = cursor.getColumnIndex(HTTPAUTH_REALM_COL);
+            int usernameIndex = cursor.getColumnIndex(HTTPAUTH_USERNAME_COL);
+            int passwordIndex = cursor.getColumnIndex(HTTPAUTH_PASSWORD_COL);
+            while (cursor.moveToNext()) {
+                String host = cursor.getString(hostIndex);
+                String realm = cursor.getString(realmIndex);
+                if (host == null || realm == null) continue;
+                stored.put(new AuthKey(host, realm), new String[] {
+                        cursor.getString(usernameIndex), cursor.getString(passwordIndex),
+                });
+            }
+        } catch (IllegalStateException e) {
+            Log.e(LOGTAG, "loadIndex", e);
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "loadIndex", e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+
+        synchronized (mIndexLock) {
+            // Stored rows are about to be deleted by the pending clear.
+            if (mPendingClear) return;
+            for (Map.Entry<AuthKey, String[]> entry : stored.entrySet()) {
+                if (!mIndex.containsKey(entry.getKey())) {
+                    mIndex.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules writing the pending changes to the database on a background thread, unless a
+     * write is already scheduled. Must be called with mIndexLock held.
+     */
+    private void scheduleWriteLocked() {
+        if (mWriteScheduled) return;
+        mWriteScheduled = true;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                writePendingChanges();
+            }
+        });
+    }
+
+    /**
+     * Writes all pending changes to the database in one transaction.
+     */
+    private void writePendingChanges() {
+        synchronized (mWriteLock) {
+            boolean initialized = waitForInit();
+            boolean clear;
+            List<Map.Entry<AuthKey, String[]>> writes;
+            synchronized (mIndexLock) {
+                clear = mPendingClear;
+                writes = new ArrayList<Map.Entry<AuthKey, String[]>>(mPendingWrites.entrySet());
+                mPendingClear = false;
+                mPendingWrites.clear();
+                mWriteScheduled = false;
+            }
+            if (!initialized || (!clear && writes.isEmpty())) return;
+
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                if (clear) mDatabase.delete(HTTPAUTH_TABLE_NAME, null, null);
+                final ContentValues c = new ContentValues();
+                for (Map.Entry<AuthKey, String[]> write : writes) {
+                    c.put(HTTPAUTH_HOST_COL, write.getKey().mHost);
+                    c.put(HTTPAUTH_REALM_COL, write.getKey().mRealm);
+                    c.put(HTTPAUTH_USERNAME_COL, write.getValue()[0]);
+                    c.put(HTTPAUTH_PASSWORD_COL, write.getValue()[1]);
+                    mDatabase.insert(HTTPAUTH_TABLE_NAME, HTTPAUTH_HOST_COL, c);
+                }
+                mDatabase.setTransactionSuccessful();
+            } catch (SQLiteException e) {
+                Log.e(LOGTAG, "writePendingChanges", e);
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * @return true if the database failed to open; false if it is open or still opening
+     */
+    private boolean initFailed() {
+        synchronized (mInitializedLock) {
+            return mInitialized && mDatabase == null;
+        }
+    }
+
     /**
      * Waits for the background initialization thread to complete and check the database creation
      * status.
@@ -165,16 +319,18 @@ public class HttpAuthDatabase {
      */
     public void setHttpAuthUsernamePassword(String host, String realm, String username,
             String password) {
-        if (host == null || realm == null || !waitForInit()) {
+        if (host == null || realm == null || initFailed()) {
             return;
         }
 
-        final ContentValues c = new ContentValues();
-        c.put(HTTPAUTH_HOST_COL, host);
-        c.put(HTTPAUTH_REALM_COL, realm);
-        c.put(HTTPAUTH_USERNAME_COL, username);
-        c.put(HTTPAUTH_PASSWORD_COL, password);
-        mDatabase.insert(HTTPAUTH_TABLE_NAME, HTTPAUTH_HOST_COL, c);
+        AuthKey key = new AuthKey(host, realm);
+        String[] credentials = new String[] { username, password };
+        synchronized (mIndexLock) {
+            mIndex.put(key, credentials);
+            mPendingWrites.remove(key);
+            mPendingWrites.put(key, credentials);
+            scheduleWriteLocked();
+        }
     }
 
     /**
@@ -192,29 +348,10 @@ public class HttpAuthDatabase {
             return null;
         }
 
-        final String[] columns = new String[] {
-            HTTPAUTH_USERNAME_COL, HTTPAUTH_PASSWORD_COL
-        };
-        final String selection = "(" + HTTPAUTH_HOST_COL + " == ?) AND " +
-                "(" + HTTPAUTH_REALM_COL + " == ?)";
-
-        String[] ret = null;
-        Cursor cursor = null;
-        try {
-            cursor = mDatabase.query(HTTPAUTH_TABLE_NAME, columns, selection,
-                    new String[] { host, realm }, null, null, null);
-            if (cursor.moveToFirst()) {
-                ret = new String[] {
-                        cursor.getString(cursor.getColumnIndex(HTTPAUTH_USERNAME_COL)),
-                        cursor.getString(cursor.getColumnIndex(HTTPAUTH_PASSWORD_COL)),
-                };
-            }
-        } catch (IllegalStateException e) {
-            Log.e(LOGTAG, "getHttpAuthUsernamePassword", e);
-        } finally {
-            if (cursor != null) cursor.close();
+        synchronized (mIndexLock) {
+            String[] credentials = mIndex.get(new AuthKey(host, realm));
+            return credentials != null ? credentials.clone() : null;
         }
-        return ret;
     }
 
     /**
@@ -227,27 +364,23 @@ public class HttpAuthDatabase {
             return false;
         }
 
-        Cursor cursor = null;
-        boolean ret = false;
-        try {
-            cursor = mDatabase.query(HTTPAUTH_TABLE_NAME, ID_PROJECTION, null, null, null, null,
-                    null);
-            ret = cursor.moveToFirst();
-        } catch (IllegalStateException e) {
-            Log.e(LOGTAG, "hasEntries", e);
-        } finally {
-            if (cursor != null) cursor.close();
+        synchronized (mIndexLock) {
+            return !mIndex.isEmpty();
         }
-        return ret;
     }
 
     /**
      * Clears the HTTP authentication password database.
      */
     public void clearHttpAuthUsernamePassword() {
-        if (!waitForInit()) {
+        if (initFailed()) {
             return;
         }
-        mDatabase.delete(HTTPAUTH_TABLE_NAME, null, null);
+        synchronized (mIndexLock) {
+            mIndex.clear();
+            mPendingWrites.clear();
+            mPendingClear = true;
+            scheduleWriteLocked();
+        }
     }
 }
@@ -0,0 +1,237 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.android_webview;
+
+import android.content.ComponentCallbacks2;
+
+import org.chromium.base.MemoryPressureListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded LRU cache of the responses returned by shouldInterceptRequest.
+ *
+ * Responses are copied, as they are read, into immutable byte arrays that are shared by every
+ * hit, so a cached url is served without calling the client again. The cache is bounded by the
+ * total number of body bytes and is disabled while its capacity is 0. It is filled and read on
+ * the IO thread and trimmed on the UI thread in response to memory pressure.
+ *
+ * The interception callback only receives the url, so entries are keyed by url alone.
+ */
+public class InterceptedResponseCache implements MemoryPressureListener.Observer {
+    // A single response may take at most this fraction of the cache.
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private static class Entry {
+        final String mMimeType;
+        final String mCharset;
+        final byte[] mBody;
+
+        Entry(String mimeType, String charset, byte[] body) {
+            mMimeType = mimeType;
+            mCharset = charset;
+            mBody = body;
+        }
+
+        InterceptedRequestData newResponse() {
+            return new InterceptedRequestData(mMimeType, mCharset,
+                    new ByteArrayInputStream(mBody));
+        }
+    }
+
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mMaxBytes;
+    private long mSizeBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    /**
+     * Sets the maximum number of body bytes held by the cache, evicting as needed. A value of 0
+     * disables the cache.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        maxBytes = Math.max(0, maxBytes);
+        if (maxBytes == mMaxBytes) return;
+        mMaxBytes = maxBytes;
+        trimToSizeLocked(mMaxBytes);
+    }
+
+    public synchronized boolean isEnabled() {
+        return mMaxBytes > 0;
+    }
+
+    /**
+     * @return A new response sharing the cached body for |url|, or null on a miss.
+     */
+    public InterceptedRequestData get(String url) {
+        Entry entry;
+        synchronized (this) {
+            if (mMaxBytes == 0) return null;
+            entry = mEntries.get(url);
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+        return entry.newResponse();
+    }
+
+    /**
+     * Caches |response| for |url| as it is read. The returned response streams the original
+     * data and copies it aside; the entry is added once the data has been read to the end, as
+     * long as it stays within the per-entry limit. Nothing is read ahead of the consumer, so
+     * this never blocks the calling thread.
+     * @return The response to serve in place of |response|, which must not be used afterwards.
+     */
+    public InterceptedRequestData put(String url, InterceptedRequestData response) {
+        InputStream data = response.getData();
+        long maxEntryBytes;
+        synchronized (this) {
+            maxEntryBytes = mMaxBytes / MAX_ENTRY_FRACTION;
+        }
+        if (data == null || maxEntryBytes == 0) return response;
+
+        return new InterceptedRequestData(response.getMimeType(), response.getCharset(),
+                new CachingInputStream(data, url, response.getMimeType(), response.getCharset(),
+                        maxEntryBytes));
+    }
+
+    private void addEntry(String url, Entry entry) {
+        synchronized (this) {
+            // The cache may have been disabled or shrunk while the response was read.
+            if (entry.mBody.length > mMaxBytes / MAX_ENTRY_FRACTION) return;
+            Entry previous = mEntries.put(url, entry);
+            if (previous != null) mSizeBytes -= previous.mBody.length;
+            mSizeBytes += entry.mBody.length;
+            trimToSizeLocked(mMaxBytes);
+        }
+    }
+
+    /**
+     * Copies the data read through it, and caches it once the end of the data is reached.
+     * Copying stops for good once the data outgrows the per-entry limit or a read fails.
+     */
+    private class CachingInputStream extends FilterInputStream {
+        private final String mUrl;
+        private final String mMimeType;
+        private final String mCharset;
+        private final long mMaxEntryBytes;
+        private final byte[] mSingleByte = new byte[1];
+        private ByteArrayOutputStream mCopy = new ByteArrayOutputStream();
+
+        CachingInputStream(InputStream in, String url, String mimeType, String charset,
+                long maxEntryBytes) {
+            super(in);
+            mUrl = url;
+            mMimeType = mimeType;
+            mCharset = charset;
+            mMaxEntryBytes = maxEntryBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(mSingleByte, 0, 1) == -1 ? -1 : mSingleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read;
+            try {
+                read = in.read(buffer, offset, count);
+            } catch (IOException e) {
+                mCopy = null;
+                throw e;
+            }
+            if (mCopy == null) return read;
+            if (read == -1) {
+                addEntry(mUrl, new Entry(mMimeType, mCharset, mCopy.toByteArray()));
+                mCopy = null;
+            } else if (mCopy.size() + read > mMaxEntryBytes) {
+                mCopy = null;
+            } else {
+                mCopy.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped data can't be cached.
+            mCopy = null;
+            return in.skip(count);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mCopy = null;
+            in.close();
+        }
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public synchronized void clear() {
+        trimToSizeLocked(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (this) {
+                trimToSizeLocked(mSizeBytes / 2);
+            }
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return The number of body bytes currently held.
+     */
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    private void trimToSizeLocked(long maxBytes) {
+        assert Thread.holdsLock(this);
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSizeBytes > maxBytes && it.hasNext()) {
+            mSizeBytes -= it.next().getValue().mBody.length;
+            it.remove();
+            mEvictionCount++;
+        }
+    }
+}
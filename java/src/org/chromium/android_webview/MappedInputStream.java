@@ -0,0 +1,106 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.android_webview;
+
+import android.content.res.AssetFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An InputStream over a read-only memory mapping of an {@link AssetFileDescriptor} region.
+ *
+ * Reads are plain copies out of the mapping, without going through AssetManager or a file
+ * descriptor, and {@link #available()} reports the exact remaining length. The mapping itself
+ * is exposed through {@link #getBuffer()} for consumers that can read a direct buffer in place.
+ */
+class MappedInputStream extends InputStream {
+    private final MappedByteBuffer mBuffer;
+
+    private MappedInputStream(MappedByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Maps the region described by |afd| and closes it; the mapping stays valid afterwards.
+     * @return The stream, or null if the region has no known length.
+     */
+    static MappedInputStream map(AssetFileDescriptor afd) throws IOException {
+        try {
+            long length = afd.getLength();
+            if (length == AssetFileDescriptor.UNKNOWN_LENGTH || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            FileInputStream input = new FileInputStream(afd.getFileDescriptor());
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), length);
+            return new MappedInputStream(buffer);
+        } finally {
+            afd.close();
+        }
+    }
+
+    /**
+     * @return A read-only view of the unread part of the mapping. Reading from the view does
+     *         not advance this stream.
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public int read() {
+        if (!mBuffer.hasRemaining()) return -1;
+        return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) return 0;
+        if (!mBuffer.hasRemaining()) return -1;
+        int count = Math.min(length, mBuffer.remaining());
+        mBuffer.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        if (count <= 0) return 0;
+        int skipped = (int) Math.min(count, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    // Mark support lets AndroidProtocolHandler.getMimeType sniff the content type.
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mBuffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        try {
+            mBuffer.reset();
+        } catch (InvalidMarkException e) {
+            throw new IOException("Stream not marked");
+        }
+    }
+}
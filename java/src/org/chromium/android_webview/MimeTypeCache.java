@@ -0,0 +1,152 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.android_webview;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import org.chromium.net.AndroidNetworkLibrary;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches mime type lookups made by {@link AndroidProtocolHandler} on the IO thread.
+ *
+ * Types reported by content providers are remembered per authority and file extension for a
+ * limited time, which avoids a binder call to the provider for every subresource. Types of
+ * asset files are resolved from an extension table that is built once and then only grows.
+ * All methods can be called from any thread.
+ */
+class MimeTypeCache {
+    // How long a type reported by a content provider is trusted.
+    static final long CONTENT_TYPE_TTL_MS = 60 * 1000;
+
+    // Bounds the number of content entries; the cache is simply flushed when it is exceeded.
+    private static final int MAX_CONTENT_ENTRIES = 512;
+
+    // Extensions whose types are resolved up front.
+    private static final String[] COMMON_EXTENSIONS = {
+        "html", "htm", "xhtml", "xml", "txt", "css", "js", "json", "png", "jpg", "jpeg", "gif",
+        "webp", "bmp", "ico", "svg", "woff", "ttf", "otf", "mp3", "mp4", "m4a", "ogg", "wav",
+        "webm", "pdf",
+    };
+
+    // Marks a lookup that is known to have no result; ConcurrentHashMap can't hold nulls.
+    private static final String NO_TYPE = "";
+
+    private static class ContentEntry {
+        final String mMimeType;
+        final long mExpiryTimeMs;
+
+        ContentEntry(String mimeType, long expiryTimeMs) {
+            mMimeType = mimeType;
+            mExpiryTimeMs = expiryTimeMs;
+        }
+    }
+
+    /**
+     * Resolves the mime type of a content URI, typically through a binder call.
+     */
+    interface ContentTypeResolver {
+        String getType(Uri uri);
+    }
+
+    private static class LazyExtensionTable {
+        // Lazy Holder pattern
+        private static final ConcurrentHashMap<String, String> sInstance = build();
+
+        private static ConcurrentHashMap<String, String> build() {
+            ConcurrentHashMap<String, String> table = new ConcurrentHashMap<String, String>();
+            for (String extension : COMMON_EXTENSIONS) {
+                String mimeType = AndroidNetworkLibrary.getMimeTypeFromExtension(extension);
+                table.put(extension, mimeType != null ? mimeType : NO_TYPE);
+            }
+            return table;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, ContentEntry> sContentTypes =
+            new ConcurrentHashMap<String, ContentEntry>();
+
+    private MimeTypeCache() {
+    }
+
+    /**
+     * Builds the extension table ahead of the first lookup.
+     */
+    static void warmUp() {
+        LazyExtensionTable.sInstance.size();
+    }
+
+    /**
+     * @return The mime type for the extension of |path|, or null if it is unknown.
+     */
+    static String getMimeTypeForPath(String path) {
+        String extension = getExtension(path);
+        if (extension == null) return null;
+        String mimeType = LazyExtensionTable.sInstance.get(extension);
+        if (mimeType == null) {
+            mimeType = AndroidNetworkLibrary.getMimeTypeFromExtension(extension);
+            if (mimeType == null) mimeType = NO_TYPE;
+            LazyExtensionTable.sInstance.putIfAbsent(extension, mimeType);
+        }
+        return mimeType == NO_TYPE ? null : mimeType;
+    }
+
+    /**
+     * @return The cached type of the content |uri|, resolving it with |resolver| on a miss.
+     */
+    static String getContentMimeType(Uri uri, ContentTypeResolver resolver) {
+        String key = getContentKey(uri);
+        long now = SystemClock.elapsedRealtime();
+        ContentEntry entry = sContentTypes.get(key);
+        if (entry != null && entry.mExpiryTimeMs > now) {
+            return entry.mMimeType == NO_TYPE ? null : entry.mMimeType;
+        }
+
+        String mimeType = resolver.getType(uri);
+        if (sContentTypes.size() >= MAX_CONTENT_ENTRIES) sContentTypes.clear();
+        sContentTypes.put(key, new ContentEntry(mimeType != null ? mimeType : NO_TYPE,
+                now + CONTENT_TYPE_TTL_MS));
+        return mimeType;
+    }
+
+    /**
+     * Drops the cached types reported by the provider for |authority|.
+     */
+    static void invalidateAuthority(String authority) {
+        String prefix = authority + "/";
+        Iterator<Map.Entry<String, ContentEntry>> it = sContentTypes.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getKey().startsWith(prefix)) it.remove();
+        }
+    }
+
+    /**
+     * Drops all cached content types.
+     */
+    static void invalidateAll() {
+        sContentTypes.clear();
+    }
+
+    // URIs with an extension share an entry per authority and extension; others are cached
+    // individually.
+    private static String getContentKey(Uri uri) {
+        String authority = uri.getAuthority();
+        String extension = getExtension(uri.getPath());
+        if (extension != null) return authority + "/*." + extension;
+        return authority + "/" + uri.getPath();
+    }
+
+    private static String getExtension(String path) {
+        if (path == null) return null;
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/') || dot == path.length() - 1) return null;
+        return path.substring(dot + 1).toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,350 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.base;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Printer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects message dispatch statistics of a Looper without turning on tracing.
+ *
+ * For every message the Looper dispatches, the time spent in the handler and the idle gap
+ * since the previous message are counted in power-of-two millisecond histograms. Messages that
+ * take at least {@link #MIN_ATTRIBUTED_DISPATCH_MILLIS} are also attributed to their handler and
+ * callback class, so the worst offenders can be ranked. Recording only parses the dispatch log
+ * line of those slow messages.
+ *
+ * The statistics are gathered through the Looper's message logging, which holds a single
+ * Printer; on the UI thread they are recorded by the TraceEvent monitor, so both can be used at
+ * the same time.
+ */
+public class LooperStats {
+    private static final String TAG = "LooperStats";
+
+    /**
+     * Sending an intent with this action to Chrome will cause it to log the statistics of every
+     * monitored Looper.
+     */
+    public static final String ACTION_DUMP_LOOPER_STATS =
+            "org.chromium.base.ACTION_DUMP_LOOPER_STATS";
+
+    /**
+     * Sending an intent with this action to Chrome will cause it to reset the statistics of
+     * every monitored Looper.
+     */
+    public static final String ACTION_RESET_LOOPER_STATS =
+            "org.chromium.base.ACTION_RESET_LOOPER_STATS";
+
+    /**
+     * Histogram bucket 0 counts durations under 1ms, bucket i counts durations in
+     * [2^(i-1), 2^i) ms and the last bucket counts everything longer.
+     */
+    public static final int BUCKET_COUNT = 13;
+
+    // Messages at least this long are attributed to their handler and callback.
+    public static final long MIN_ATTRIBUTED_DISPATCH_MILLIS = 4;
+
+    // Bounds the number of distinct handler and callback classes that are tracked.
+    private static final int MAX_TRACKED_DISPATCHERS = 64;
+
+    private static final int DEFAULT_REPORTED_DISPATCHERS = 10;
+
+    // Format of the Looper log line: ">>>>> Dispatching to <target> <callback>: <what>", where
+    // the target prints as "Handler (<class>) {<hash>}".
+    private static final String DISPATCH_PREFIX = ">>>>> Dispatching to ";
+
+    // The statistics of every monitored Looper, guarded by itself.
+    private static final Map<Looper, LooperStats> sMonitored = new HashMap<Looper, LooperStats>();
+
+    private static class Dispatcher {
+        final String mName;
+        long mCount;
+        long mTotalMillis;
+        long mMaxMillis;
+
+        Dispatcher(String name) {
+            mName = name;
+        }
+    }
+
+    private static class StatsPrinter implements Printer {
+        private final LooperStats mStats;
+
+        StatsPrinter(LooperStats stats) {
+            mStats = stats;
+        }
+
+        @Override
+        public void println(String line) {
+            if (line.startsWith(">")) {
+                mStats.onDispatchStarted(line);
+            } else {
+                mStats.onDispatchFinished();
+            }
+        }
+    }
+
+    private final String mName;
+    private final long[] mDispatchHistogram = new long[BUCKET_COUNT];
+    private final long[] mIdleHistogram = new long[BUCKET_COUNT];
+    private final Map<String, Dispatcher> mDispatchers = new HashMap<String, Dispatcher>();
+    // The log line of the message being dispatched, or null between messages.
+    private String mDispatchLine;
+    private long mDispatchStartedAt;
+    private long mLastDispatchFinishedAt = -1;
+    private long mMessageCount;
+    private long mTotalDispatchMillis;
+
+    private LooperStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Starts collecting statistics of |looper|, replacing the message logging Printer of a
+     * non-UI Looper. Does nothing if the Looper is already monitored.
+     * @return The statistics of |looper|.
+     */
+    public static LooperStats startMonitoring(Looper looper) {
+        LooperStats stats;
+        synchronized (sMonitored) {
+            stats = sMonitored.get(looper);
+            if (stats != null) return stats;
+            stats = new LooperStats(looper.getThread().getName());
+            sMonitored.put(looper, stats);
+        }
+        if (looper == ThreadUtils.getUiThreadLooper()) {
+            TraceEvent.setUiLooperStats(stats);
+        } else {
+            looper.setMessageLogging(new StatsPrinter(stats));
+        }
+        return stats;
+    }
+
+    /**
+     * Stops collecting statistics of |looper| and discards them.
+     */
+    public static void stopMonitoring(Looper looper) {
+        synchronized (sMonitored) {
+            if (sMonitored.remove(looper) == null) return;
+        }
+        if (looper == ThreadUtils.getUiThreadLooper()) {
+            TraceEvent.setUiLooperStats(null);
+        } else {
+            looper.setMessageLogging(null);
+        }
+    }
+
+    /**
+     * @return The statistics of |looper|, or null if it is not monitored.
+     */
+    public static LooperStats get(Looper looper) {
+        synchronized (sMonitored) {
+            return sMonitored.get(looper);
+        }
+    }
+
+    /**
+     * Used by applications to query the statistics at runtime, by throwing certain intent
+     * actions.
+     */
+    public static boolean handleDebugIntent(String action) {
+        if (ACTION_DUMP_LOOPER_STATS.equals(action)) {
+            for (LooperStats stats : getAllMonitored()) {
+                Log.i(TAG, stats.dump(DEFAULT_REPORTED_DISPATCHERS));
+            }
+        } else if (ACTION_RESET_LOOPER_STATS.equals(action)) {
+            for (LooperStats stats : getAllMonitored()) {
+                stats.reset();
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static List<LooperStats> getAllMonitored() {
+        synchronized (sMonitored) {
+            return new ArrayList<LooperStats>(sMonitored.values());
+        }
+    }
+
+    // Called on the Looper thread before a message is dispatched, with its log line.
+    synchronized void onDispatchStarted(String line) {
+        long now = SystemClock.uptimeMillis();
+        if (mLastDispatchFinishedAt >= 0) {
+            mIdleHistogram[getBucket(now - mLastDispatchFinishedAt)]++;
+        }
+        mDispatchStartedAt = now;
+        mDispatchLine = line;
+    }
+
+    // Called on the Looper thread after a message is dispatched.
+    synchronized void onDispatchFinished() {
+        long now = SystemClock.uptimeMillis();
+        mLastDispatchFinishedAt = now;
+        // Monitoring may have started in the middle of a dispatch.
+        String line = mDispatchLine;
+        if (line == null) return;
+        mDispatchLine = null;
+
+        long elapsed = now - mDispatchStartedAt;
+        mMessageCount++;
+        mTotalDispatchMillis += elapsed;
+        mDispatchHistogram[getBucket(elapsed)]++;
+        if (elapsed >= MIN_ATTRIBUTED_DISPATCH_MILLIS) attribute(line, elapsed);
+    }
+
+    private void attribute(String line, long elapsed) {
+        String name = getDispatcherName(line);
+        Dispatcher dispatcher = mDispatchers.get(name);
+        if (dispatcher == null) {
+            if (mDispatchers.size() >= MAX_TRACKED_DISPATCHERS) evictLeastCostlyDispatcher();
+            dispatcher = new Dispatcher(name);
+            mDispatchers.put(name, dispatcher);
+        }
+        dispatcher.mCount++;
+        dispatcher.mTotalMillis += elapsed;
+        dispatcher.mMaxMillis = Math.max(dispatcher.mMaxMillis, elapsed);
+    }
+
+    private void evictLeastCostlyDispatcher() {
+        Dispatcher leastCostly = null;
+        for (Dispatcher dispatcher : mDispatchers.values()) {
+            if (leastCostly == null || dispatcher.mTotalMillis < leastCostly.mTotalMillis) {
+                leastCostly = dispatcher;
+            }
+        }
+        mDispatchers.remove(leastCostly.mName);
+    }
+
+    /**
+     * Reduces a dispatch log line to the handler class and the callback class, or the message
+     * code when there is no callback. Object hashes are dropped so instances share an entry.
+     */
+    static String getDispatcherName(String line) {
+        if (!line.startsWith(DISPATCH_PREFIX)) return line;
+        int handlerStart = line.indexOf('(', DISPATCH_PREFIX.length());
+        int handlerEnd = line.indexOf(')', handlerStart + 1);
+        int targetEnd = line.indexOf("} ", handlerEnd + 1);
+        int callbackEnd = line.lastIndexOf(": ");
+        if (handlerStart < 0 || handlerEnd < 0 || targetEnd < 0 || callbackEnd < targetEnd) {
+            return line.substring(DISPATCH_PREFIX.length());
+        }
+        String handler = line.substring(handlerStart + 1, handlerEnd);
+        String callback = line.substring(targetEnd + 2, callbackEnd);
+        if (callback.equals("null")) {
+            return handler + " what=" + line.substring(callbackEnd + 2);
+        }
+        int hash = callback.lastIndexOf('@');
+        if (hash > 0) callback = callback.substring(0, hash);
+        return handler + " " + callback;
+    }
+
+    private static int getBucket(long millis) {
+        if (millis < 1) return 0;
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return The name of the thread of the monitored Looper.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized long getMessageCount() {
+        return mMessageCount;
+    }
+
+    public synchronized long getTotalDispatchMillis() {
+        return mTotalDispatchMillis;
+    }
+
+    /**
+     * @return The histogram of message dispatch times. See {@link #BUCKET_COUNT}.
+     */
+    public synchronized long[] getDispatchHistogram() {
+        return Arrays.copyOf(mDispatchHistogram, BUCKET_COUNT);
+    }
+
+    /**
+     * @return The histogram of the idle gaps between messages. See {@link #BUCKET_COUNT}.
+     */
+    public synchronized long[] getIdleHistogram() {
+        return Arrays.copyOf(mIdleHistogram, BUCKET_COUNT);
+    }
+
+    /**
+     * @return Up to |count| descriptions of the handlers and callbacks that spent the most time
+     *         in slow messages, the most costly first.
+     */
+    public synchronized List<String> getWorstDispatchers(int count) {
+        List<Dispatcher> dispatchers = new ArrayList<Dispatcher>(mDispatchers.values());
+        Collections.sort(dispatchers, new Comparator<Dispatcher>() {
+            @Override
+            public int compare(Dispatcher a, Dispatcher b) {
+                return a.mTotalMillis > b.mTotalMillis ? -1
+                        : (a.mTotalMillis == b.mTotalMillis ? 0 : 1);
+            }
+        });
+        List<String> worst = new ArrayList<String>();
+        Iterator<Dispatcher> it = dispatchers.iterator();
+        while (worst.size() < count && it.hasNext()) {
+            Dispatcher dispatcher = it.next();
+            worst.add(dispatcher.mName + ": " + dispatcher.mCount + " messages, "
+                    + dispatcher.mTotalMillis + "ms total, " + dispatcher.mMaxMillis + "ms max");
+        }
+        return worst;
+    }
+
+    /**
+     * Clears the statistics gathered so far.
+     */
+    public synchronized void reset() {
+        Arrays.fill(mDispatchHistogram, 0);
+        Arrays.fill(mIdleHistogram, 0);
+        mDispatchers.clear();
+        mMessageCount = 0;
+        mTotalDispatchMillis = 0;
+        mLastDispatchFinishedAt = -1;
+    }
+
+    /**
+     * @return A human readable report including up to |dispatcherCount| of the worst handlers.
+     */
+    public synchronized String dump(int dispatcherCount) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Looper ").append(mName).append(": ").append(mMessageCount)
+                .append(" messages, ").append(mTotalDispatchMillis).append("ms dispatching\n");
+        appendHistogram(builder, "  dispatch ms ", mDispatchHistogram);
+        appendHistogram(builder, "  idle ms     ", mIdleHistogram);
+        for (String dispatcher : getWorstDispatchers(dispatcherCount)) {
+            builder.append("  ").append(dispatcher).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, String label, long[] histogram) {
+        builder.append(label).append("[<1: ").append(histogram[0]);
+        for (int i = 1; i < BUCKET_COUNT; i++) {
+            builder.append(", ").append(i < BUCKET_COUNT - 1 ? "<" : ">=")
+                    .append(i < BUCKET_COUNT - 1 ? 1L << i : 1L << (i - 1))
+                    .append(": ").append(histogram[i]);
+        }
+        builder.append("]\n");
+    }
+}
@@ -42,6 +42,33 @@ public class MemoryPressureListener {
     private static final String ACTION_TRIM_MEMORY_MODERATE =
             "org.chromium.base.ACTION_TRIM_MEMORY_MODERATE";
 
+    /**
+     * Java-side observer of the system memory signals. Observers are notified on the UI
+     * thread with the raw {@link ComponentCallbacks2} trim level; onLowMemory is reported as
+     * {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE}.
+     */
+    public interface Observer {
+        public void onTrimMemory(int level);
+    }
+
+    private static final ObserverList<Observer> sObservers = new ObserverList<Observer>();
+
+    /**
+     * Adds an observer of memory signals. Must be called on the UI thread.
+     */
+    public static void addObserver(Observer observer) {
+        ThreadUtils.assertOnUiThread();
+        sObservers.addObserver(observer);
+    }
+
+    /**
+     * Removes an observer added with {@link #addObserver}. Must be called on the UI thread.
+     */
+    public static void removeObserver(Observer observer) {
+        ThreadUtils.assertOnUiThread();
+        sObservers.removeObserver(observer);
+    }
+
     @CalledByNative
     private static void registerSystemCallback(Context context) {
         context.registerComponentCallbacks(
@@ -53,6 +80,7 @@ public class MemoryPressureListener {
 
                     @Override
                     public void onLowMemory() {
+                        notifyObservers(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
                         nativeOnMemoryPressure(MemoryPressureLevelList.MEMORY_PRESSURE_CRITICAL);
                     }
 
@@ -84,6 +112,7 @@ public class MemoryPressureListener {
     }
 
     public static void maybeNotifyMemoryPresure(int level) {
+        notifyObservers(level);
         if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
             nativeOnMemoryPressure(MemoryPressureLevelList.MEMORY_PRESSURE_CRITICAL);
         } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
@@ -94,6 +123,12 @@ public class MemoryPressureListener {
         }
     }
 
+    private static void notifyObservers(int level) {
+        for (Observer observer : sObservers) {
+            observer.onTrimMemory(level);
+        }
+    }
+
     private static void simulateLowMemoryPressureSignal(Activity activity) {
         // The Application and the Activity each have a list of callbacks they notify when this
         // method is called.  Notifying these will simulate the event at the App/Activity level
@@ -16,8 +16,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
-import java.util.LinkedList;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * PerfTraceEvent can be used like TraceEvent, but is intended for
@@ -35,6 +43,16 @@ import java.util.List;
  * the right ones.  For example, we specify the name exactly in
  * the @TracePerf annotation.  Thus, unlike TraceEvent, we do not
  * support an implicit trace name based on the callstack.
+ *
+ * Recording does not lock or allocate: each thread appends primitive records to its own
+ * fixed-size ring buffer, and event names are interned into ids.  Once a buffer is full the
+ * oldest records of that thread are overwritten.  The records are only turned into JSON when
+ * tracing is disabled and the data is dumped.  The buffer of a thread that has exited is
+ * dropped once its records have been dumped, or handed to a new thread if it holds none of
+ * the current session.
+ *
+ * org.chromium.content.common.PerfTraceEvent is a copy of this class for older callers; keep
+ * the two in sync.
  */
 public class PerfTraceEvent {
     private static final int MAX_NAME_LENGTH = 40;
@@ -60,22 +78,119 @@ public class PerfTraceEvent {
         }
     }
 
-    private static boolean sEnabled = false;
-    private static boolean sTrackTiming = true;
-    private static boolean sTrackMemory = false;
+    // The number of records each thread can hold before it overwrites its oldest ones.
+    private static final int RECORDS_PER_THREAD = 4096;
+
+    // Stored in place of the memory usage of records that do not track memory.
+    private static final int NO_MEMORY = -1;
 
-    // A list of performance trace event strings.
-    // Events are stored as a JSON dict much like TraceEvent.
-    // E.g. timestamp is in microseconds.
-    private static JSONArray sPerfTraceStrings;
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private static volatile boolean sEnabled = false;
+    private static volatile boolean sTrackTiming = true;
+    private static volatile boolean sTrackMemory = false;
 
     // A filter for performance tracing.  Only events that match a
-    // string in the list are saved.  Presence of a filter does not
-    // necessarily mean perf tracing is enabled.
-    private static List<String> sFilter;
+    // string in the set are saved.  Presence of a filter does not
+    // necessarily mean perf tracing is enabled.  The set is never
+    // modified once published.
+    private static volatile Set<String> sFilter;
 
     // Nanosecond start time of performance tracing.
-    private static long sBeginNanoTime;
+    private static volatile long sBeginNanoTime;
+
+    // Incremented every time tracing is enabled, so buffers can discard records from an
+    // earlier session.
+    private static volatile int sSession;
+
+    // Interned event names.  An id is the index of its name in sNames.
+    private static final ConcurrentHashMap<String, Integer> sNameIds =
+            new ConcurrentHashMap<String, Integer>();
+    private static final List<String> sNames = new ArrayList<String>();
+
+    // The buffers of every live thread that has recorded an event, and of exited threads
+    // until they are dumped or recycled.  Registration is synchronized on the list.
+    private static final List<RecordBuffer> sBuffers = new CopyOnWriteArrayList<RecordBuffer>();
+
+    private static final ThreadLocal<RecordBuffer> sThreadBuffer =
+            new ThreadLocal<RecordBuffer>() {
+                @Override
+                protected RecordBuffer initialValue() {
+                    Thread thread = Thread.currentThread();
+                    synchronized (sBuffers) {
+                        for (RecordBuffer buffer : sBuffers) {
+                            if (buffer.isOwnerAlive()) continue;
+                            // Records of the current session are kept until they are dumped.
+                            if (buffer.mSession == sSession && buffer.mCount != 0) continue;
+                            buffer.mOwner = new WeakReference<Thread>(thread);
+                            return buffer;
+                        }
+                        RecordBuffer buffer = new RecordBuffer();
+                        buffer.mOwner = new WeakReference<Thread>(thread);
+                        sBuffers.add(buffer);
+                        return buffer;
+                    }
+                }
+            };
+
+    /**
+     * A ring buffer of perf trace records written by a single thread.  The records are stored
+     * as parallel primitive arrays.  The sequence number is odd while a record is being
+     * written, so a dump from another thread can tell that its copy of the buffer is torn.
+     */
+    private static class RecordBuffer {
+        final int[] mNameIds = new int[RECORDS_PER_THREAD];
+        final byte[] mTypes = new byte[RECORDS_PER_THREAD];
+        final long[] mTimestampsUs = new long[RECORDS_PER_THREAD];
+        final int[] mMemoryPss = new int[RECORDS_PER_THREAD];
+        int mSession;
+        long mCount;
+        volatile int mSequence;
+        volatile WeakReference<Thread> mOwner;
+
+        void add(int session, int nameId, EventType type, long timestampUs, int memoryPss) {
+            mSequence++;
+            long count = mCount;
+            if (mSession != session) {
+                mSession = session;
+                count = 0;
+            }
+            int index = (int) (count % RECORDS_PER_THREAD);
+            mNameIds[index] = nameId;
+            mTypes[index] = (byte) type.ordinal();
+            mTimestampsUs[index] = timestampUs;
+            mMemoryPss[index] = memoryPss;
+            mCount = count + 1;
+            mSequence++;
+        }
+
+        /**
+         * Copies the records into |copy|, retrying until no record was written meanwhile.
+         * Called on the dumping thread.
+         */
+        void copyTo(RecordBuffer copy) {
+            while (true) {
+                int sequence = mSequence;
+                if ((sequence & 1) == 0) {
+                    copy.mSession = mSession;
+                    copy.mCount = mCount;
+                    System.arraycopy(mNameIds, 0, copy.mNameIds, 0, RECORDS_PER_THREAD);
+                    System.arraycopy(mTypes, 0, copy.mTypes, 0, RECORDS_PER_THREAD);
+                    System.arraycopy(mTimestampsUs, 0, copy.mTimestampsUs, 0,
+                            RECORDS_PER_THREAD);
+                    System.arraycopy(mMemoryPss, 0, copy.mMemoryPss, 0, RECORDS_PER_THREAD);
+                    if (mSequence == sequence) return;
+                }
+                // Tracing is disabled before dumping, so the writer finishes shortly.
+                Thread.yield();
+            }
+        }
+
+        boolean isOwnerAlive() {
+            Thread owner = mOwner.get();
+            return owner != null && owner.isAlive();
+        }
+    }
 
     /**
      * Specifies what event names will be tracked.
@@ -83,7 +198,7 @@ public class PerfTraceEvent {
      * @param strings Event names we will record.
      */
     public static synchronized void setFilter(List<String> strings) {
-        sFilter = new LinkedList<String>(strings);
+        sFilter = Collections.unmodifiableSet(new HashSet<String>(strings));
     }
 
     /**
@@ -96,13 +211,13 @@ public class PerfTraceEvent {
         }
         if (enabled) {
             sBeginNanoTime = System.nanoTime();
-            sPerfTraceStrings = new JSONArray();
+            sSession++;
+            sEnabled = true;
         } else {
+            sEnabled = false;
             dumpPerf();
-            sPerfTraceStrings = null;
             sFilter = null;
         }
-        sEnabled = enabled;
     }
 
     /**
@@ -143,14 +258,14 @@ public class PerfTraceEvent {
      * It is safe to call trace methods without checking if PerfTraceEvent
      * is enabled.
      */
-    public static synchronized boolean enabled() {
+    public static boolean enabled() {
         return sEnabled;
     }
 
     /**
      * Record an "instant" perf trace event.  E.g. "screen update happened".
      */
-    public static synchronized void instant(String name) {
+    public static void instant(String name) {
         // Instant doesn't really need/take an event id, but this should be okay.
         final long eventId = name.hashCode();
         TraceEvent.instant(name);
@@ -164,7 +279,7 @@ public class PerfTraceEvent {
      * Record an "begin" perf trace event.
      * Begin trace events should have a matching end event.
      */
-    public static synchronized void begin(String name) {
+    public static void begin(String name) {
         final long eventId = name.hashCode();
         TraceEvent.startAsync(name, eventId);
         if (sEnabled && matchesFilter(name)) {
@@ -185,7 +300,7 @@ public class PerfTraceEvent {
      * time delta between begin and end is usually interesting to
      * graph code.
      */
-    public static synchronized void end(String name) {
+    public static void end(String name) {
         final long eventId = name.hashCode();
         TraceEvent.finishAsync(name, eventId);
         if (sEnabled && matchesFilter(name)) {
@@ -205,7 +320,7 @@ public class PerfTraceEvent {
      * Record an "begin" memory trace event.
      * Begin trace events should have a matching end event.
      */
-    public static synchronized void begin(String name, MemoryInfo memoryInfo) {
+    public static void begin(String name, MemoryInfo memoryInfo) {
         final long eventId = name.hashCode();
         TraceEvent.startAsync(name, eventId);
         if (sEnabled && matchesFilter(name)) {
@@ -225,7 +340,7 @@ public class PerfTraceEvent {
      * memory usage delta between begin and end is usually interesting to
      * graph code.
      */
-    public static synchronized void end(String name, MemoryInfo memoryInfo) {
+    public static void end(String name, MemoryInfo memoryInfo) {
         final long eventId = name.hashCode();
         TraceEvent.finishAsync(name, eventId);
         if (sEnabled && matchesFilter(name)) {
@@ -245,11 +360,12 @@ public class PerfTraceEvent {
      * @return True if the name matches the allowed filter; else false.
      */
     private static boolean matchesFilter(String name) {
-        return sFilter != null ? sFilter.contains(name) : false;
+        Set<String> filter = sFilter;
+        return filter != null ? filter.contains(name) : false;
     }
 
     /**
-     * Save a perf trace event as a JSON dict.  The format mirrors a TraceEvent dict.
+     * Save a perf trace event in the calling thread's buffer.
      *
      * @param name The trace data
      * @param id The id of the event
@@ -268,7 +384,8 @@ public class PerfTraceEvent {
     }
 
     /**
-     * Save a perf trace event as a JSON dict.  The format mirrors a TraceEvent dict.
+     * Save a perf trace event in the calling thread's buffer.  The id is not stored, as it is
+     * always the hash of the name.
      *
      * @param name The trace data
      * @param id The id of the event
@@ -279,21 +396,85 @@ public class PerfTraceEvent {
      */
     private static void savePerfString(String name, long id, EventType type, long timestampUs,
             MemoryInfo memoryInfo) {
+        assert id == name.hashCode();
+        int pss = NO_MEMORY;
+        if (memoryInfo != null) {
+            pss = memoryInfo.nativePss + memoryInfo.dalvikPss + memoryInfo.otherPss;
+        }
+        sThreadBuffer.get().add(sSession, internName(name), type, timestampUs, pss);
+    }
+
+    /**
+     * @return The id of |name|, assigning one the first time it is seen.
+     */
+    private static int internName(String name) {
+        Integer id = sNameIds.get(name);
+        if (id != null) return id;
+        synchronized (sNames) {
+            id = sNameIds.get(name);
+            if (id == null) {
+                id = sNames.size();
+                sNames.add(name);
+                sNameIds.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Converts the records of the current session to JSON dicts, ordered by timestamp.  The
+     * format mirrors a TraceEvent dict; e.g. the timestamp is in microseconds.
+     */
+    private static JSONArray serializeRecords() {
+        final int session = sSession;
+        List<long[]> records = new ArrayList<long[]>();
+        RecordBuffer copy = new RecordBuffer();
+        synchronized (sBuffers) {
+            for (RecordBuffer buffer : sBuffers) {
+                // Checked first, so that every record of an exited thread is in the copy.
+                boolean ownerAlive = buffer.isOwnerAlive();
+                buffer.copyTo(copy);
+                if (!ownerAlive) sBuffers.remove(buffer);
+                if (copy.mSession != session) continue;
+                long first = Math.max(0, copy.mCount - RECORDS_PER_THREAD);
+                for (long i = first; i < copy.mCount; i++) {
+                    int index = (int) (i % RECORDS_PER_THREAD);
+                    records.add(new long[] {
+                        copy.mTimestampsUs[index], copy.mNameIds[index],
+                        copy.mTypes[index], copy.mMemoryPss[index] });
+                }
+            }
+        }
+        long[][] sorted = records.toArray(new long[records.size()][]);
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+
+        JSONArray traceArray = new JSONArray();
         try {
-            JSONObject traceObj = new JSONObject();
-            traceObj.put("cat", "Java");
-            traceObj.put("ts", timestampUs);
-            traceObj.put("ph", type);
-            traceObj.put("name", name);
-            traceObj.put("id", id);
-            if (memoryInfo != null) {
-                int pss = memoryInfo.nativePss + memoryInfo.dalvikPss + memoryInfo.otherPss;
-                traceObj.put("mem", pss);
+            for (long[] record : sorted) {
+                String name;
+                synchronized (sNames) {
+                    name = sNames.get((int) record[1]);
+                }
+                JSONObject traceObj = new JSONObject();
+                traceObj.put("cat", "Java");
+                traceObj.put("ts", record[0]);
+                traceObj.put("ph", EVENT_TYPES[(int) record[2]]);
+                traceObj.put("name", name);
+                traceObj.put("id", (long) name.hashCode());
+                if (record[3] != NO_MEMORY) {
+                    traceObj.put("mem", (int) record[3]);
+                }
+                traceArray.put(traceObj);
             }
-            sPerfTraceStrings.put(traceObj);
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
+        return traceArray;
     }
 
     /**
@@ -342,7 +523,7 @@ public class PerfTraceEvent {
      * Output as JSON for parsing convenience.
      */
     private static void dumpPerf() {
-        String json = sPerfTraceStrings.toString();
+        String json = serializeRecords().toString();
 
         if (sOutputFile == null) {
             System.out.println(json);
@@ -29,13 +29,19 @@ public class TraceEvent {
         private static final String DISPATCH_EVENT_NAME =
                 "Looper.dispatchMessage";
 
+        // Statistics of the UI thread's Looper, recorded whether or not tracing is enabled.
+        private volatile LooperStats mStats;
+
         @Override
         public void println(final String line) {
+            LooperStats stats = mStats;
             if (line.startsWith(">")) {
+                if (stats != null) stats.onDispatchStarted(line);
                 beginHandling(line);
             } else {
                 assert line.startsWith("<");
                 endHandling(line);
+                if (stats != null) stats.onDispatchFinished();
             }
         }
 
@@ -244,8 +250,22 @@ public class TraceEvent {
     public static synchronized void setEnabled(boolean enabled) {
         if (sEnabled == enabled) return;
         sEnabled = enabled;
+        updateUiLooperMonitor();
+    }
+
+    /**
+     * Sets the statistics the UI thread's Looper monitor records into, or null to stop
+     * recording. Used by {@link LooperStats}, which shares the monitor with tracing.
+     */
+    static synchronized void setUiLooperStats(LooperStats stats) {
+        LooperMonitorHolder.sInstance.mStats = stats;
+        updateUiLooperMonitor();
+    }
+
+    private static void updateUiLooperMonitor() {
+        BasicLooperMonitor monitor = LooperMonitorHolder.sInstance;
         ThreadUtils.getUiThreadLooper().setMessageLogging(
-                enabled ? LooperMonitorHolder.sInstance : null);
+                sEnabled || monitor.mStats != null ? monitor : null);
     }
 
     /**
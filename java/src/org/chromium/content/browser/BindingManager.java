@@ -20,11 +20,27 @@ package org.chromium.content.browser;
  * - dropping the current oom bindings when a new connection is started on a low-memory device
  * - keeping a strong binding on the foreground service while the entire application is in
  *   background
+ * - keeping strong bindings on the few most recently visible services, and releasing them as
+ *   memory pressure grows (onTrimMemory())
  *
  * Thread-safety: most of the methods will be called only on the main thread, exceptions are
  * explicitly noted.
  */
 public interface BindingManager {
+    // Binding states reported by getBindingState(), from the least to the most protected.
+    /** There is no live connection for the pid. */
+    static final int BINDING_STATE_UNKNOWN = 0;
+    /** The service holds no oom binding. */
+    static final int BINDING_STATE_WAIVED = 1;
+    /** The service only holds the initial binding, as its visibility is not yet known. */
+    static final int BINDING_STATE_INITIAL = 2;
+    /** The service is strongly bound as the main service of the backgrounded embedder. */
+    static final int BINDING_STATE_BACKGROUND_PERIOD = 3;
+    /** The service is strongly bound as one of the most recently visible services. */
+    static final int BINDING_STATE_RECENT = 4;
+    /** The service is strongly bound because it is visible. */
+    static final int BINDING_STATE_FOREGROUND = 5;
+
     /**
      * Registers a freshly started child process. On low-memory devices this will also drop the
      * oom bindings of the last process that was oom-bound. We can do that, because every time a
@@ -67,6 +83,20 @@ public interface BindingManager {
      */
     boolean isOomProtected(int pid);
 
+    /**
+     * Called when the system asks the application to trim its memory. Strong bindings kept on
+     * recently visible services are released gradually as the level rises, and all at once when
+     * memory is critically low. They are restored by onBroughtToForeground().
+     * @param level the level passed to ComponentCallbacks2.onTrimMemory()
+     */
+    void onTrimMemory(int level);
+
+    /**
+     * @return The BINDING_STATE_* value describing the strongest oom binding currently held on
+     * the given service process, for diagnostics. This can be called on any thread.
+     */
+    int getBindingState(int pid);
+
     /**
      * Should be called when the connection to the child process goes away (either after a clean
      * exit or an unexpected crash). At this point we let go of the reference to the
@@ -4,6 +4,7 @@
 
 package org.chromium.content.browser;
 
+import android.content.ComponentCallbacks2;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -12,6 +13,8 @@ import com.google.common.annotations.VisibleForTesting;
 import org.chromium.base.SysUtils;
 import org.chromium.base.ThreadUtils;
 
+import java.util.ArrayList;
+
 /**
  * Manages oom bindings used to bound child services.
  */
@@ -25,11 +28,16 @@ class BindingManagerImpl implements BindingManager {
     // non-low-memory devices).
     private static final long DETACH_AS_ACTIVE_HIGH_END_DELAY_MILLIS = 1 * 1000;
 
+    // Number of recently visible processes that keep a strong binding after going to background
+    // (only on non-low-memory devices).
+    private static final int RECENT_BINDING_COUNT_HIGH_END = 3;
+
     // These fields allow to override the parameters for testing - see
     // createBindingManagerForTesting().
     private final long mRemoveInitialBindingDelay;
     private final long mRemoveStrongBindingDelay;
     private final boolean mIsLowMemoryDevice;
+    private final int mMaxRecentBindingCount;
 
     /**
      * Wraps ChildProcessConnection keeping track of additional information needed to manage the
@@ -49,14 +57,26 @@ class BindingManagerImpl implements BindingManager {
         // application background period.
         private boolean mBoundForBackgroundPeriod;
 
+        // True iff there is a strong binding kept on the service because it is one of the most
+        // recently visible services.
+        private boolean mRecentlyVisible;
+
         // When mConnection is cleared, oom binding status is stashed here.
         private boolean mWasOomProtected;
 
-        /** Removes the initial service binding. */
+        /**
+         * Removes the initial service binding. This is done right away if the service already
+         * holds a strong binding, and after a delay otherwise.
+         */
         private void removeInitialBinding() {
             final ChildProcessConnection connection = mConnection;
             if (connection == null || !connection.isInitialBindingBound()) return;
 
+            if (connection.isStrongBindingBound()) {
+                connection.removeInitialBinding();
+                return;
+            }
+
             ThreadUtils.postOnUiThreadDelayed(new Runnable() {
                 @Override
                 public void run() {
@@ -77,6 +97,11 @@ class BindingManagerImpl implements BindingManager {
 
         /** Removes a strong service binding. */
         private void removeStrongBinding() {
+            removeStrongBinding(mRemoveStrongBindingDelay);
+        }
+
+        /** Removes a strong service binding after |delay| milliseconds. */
+        private void removeStrongBinding(long delay) {
             final ChildProcessConnection connection = mConnection;
             // We have to fail gracefully if the strong binding is not present, as on low-end the
             // binding could have been removed by dropOomBindings() when a new service was started.
@@ -96,7 +121,7 @@ class BindingManagerImpl implements BindingManager {
             if (mIsLowMemoryDevice) {
                 doUnbind.run();
             } else {
-                ThreadUtils.postOnUiThreadDelayed(doUnbind, mRemoveStrongBindingDelay);
+                ThreadUtils.postOnUiThreadDelayed(doUnbind, delay);
             }
         }
 
@@ -131,6 +156,24 @@ class BindingManagerImpl implements BindingManager {
             mInForeground = nextInForeground;
         }
 
+        boolean isInForeground() {
+            return mInForeground;
+        }
+
+        /**
+         * Sets or removes the additional binding kept while the service is one of the most
+         * recently visible ones. A removed binding is released after |removeDelay| milliseconds.
+         */
+        void setRecentlyVisible(boolean nextRecentlyVisible, long removeDelay) {
+            if (!mRecentlyVisible && nextRecentlyVisible) {
+                addStrongBinding();
+            } else if (mRecentlyVisible && !nextRecentlyVisible) {
+                removeStrongBinding(removeDelay);
+            }
+
+            mRecentlyVisible = nextRecentlyVisible;
+        }
+
         /**
          * Sets or removes additional binding when the service is main service during the embedder
          * background period.
@@ -153,6 +196,21 @@ class BindingManagerImpl implements BindingManager {
                     mConnection.isOomProtectedOrWasWhenDied() : mWasOomProtected;
         }
 
+        int getBindingState() {
+            ChildProcessConnection connection = mConnection;
+            if (connection == null) return BINDING_STATE_UNKNOWN;
+            if (!connection.isStrongBindingBound()) {
+                return connection.isInitialBindingBound()
+                        ? BINDING_STATE_INITIAL : BINDING_STATE_WAIVED;
+            }
+            if (mInForeground) return BINDING_STATE_FOREGROUND;
+            if (mRecentlyVisible) return BINDING_STATE_RECENT;
+            if (mBoundForBackgroundPeriod) return BINDING_STATE_BACKGROUND_PERIOD;
+            // Only a strong binding pending its delayed removal is left.
+            return connection.isInitialBindingBound()
+                    ? BINDING_STATE_INITIAL : BINDING_STATE_WAIVED;
+        }
+
         void clearConnection() {
             mWasOomProtected = mConnection.isOomProtectedOrWasWhenDied();
             mConnection = null;
@@ -175,8 +233,17 @@ class BindingManagerImpl implements BindingManager {
     // renderer process at a time is protected from oom killing.
     private ManagedConnection mLastInForeground;
 
-    // Synchronizes operations that access mLastInForeground: setInForeground() and
-    // addNewConnection().
+    // Services that were visible most recently and keep a strong binding for it, the most recent
+    // last. Synchronize access on mLastInForegroundLock.
+    private final ArrayList<ManagedConnection> mRecentlyVisible =
+            new ArrayList<ManagedConnection>();
+
+    // Number of entries allowed in mRecentlyVisible, lowered by onTrimMemory(). Synchronize
+    // access on mLastInForegroundLock.
+    private int mRecentBindingLimit;
+
+    // Synchronizes operations that access mLastInForeground and mRecentlyVisible:
+    // setInForeground(), addNewConnection(), onTrimMemory() and clearConnection().
     private final Object mLastInForegroundLock = new Object();
 
     // The connection bound with additional binding in onSentToBackground().
@@ -191,6 +258,9 @@ class BindingManagerImpl implements BindingManager {
         mIsLowMemoryDevice = isLowMemoryDevice;
         mRemoveInitialBindingDelay = removeInitialBindingDelay;
         mRemoveStrongBindingDelay = removeStrongBindingDelay;
+        // On low-end only one renderer at a time is protected, see addNewConnection().
+        mMaxRecentBindingCount = isLowMemoryDevice ? 0 : RECENT_BINDING_COUNT_HIGH_END;
+        mRecentBindingLimit = mMaxRecentBindingCount;
     }
 
     public static BindingManagerImpl createBindingManager() {
@@ -234,8 +304,36 @@ class BindingManagerImpl implements BindingManager {
         }
 
         synchronized (mLastInForegroundLock) {
-            managedConnection.setInForeground(inForeground);
-            if (inForeground) mLastInForeground = managedConnection;
+            if (inForeground) {
+                managedConnection.setInForeground(true);
+                mLastInForeground = managedConnection;
+                // The foreground binding now protects the service.
+                if (mRecentlyVisible.remove(managedConnection)) {
+                    managedConnection.setRecentlyVisible(false, 0);
+                }
+            } else {
+                // Take the recent binding before the foreground one is released, so that the
+                // service is not left unprotected in between.
+                if (managedConnection.isInForeground() && mRecentBindingLimit > 0) {
+                    managedConnection.setRecentlyVisible(true, 0);
+                    mRecentlyVisible.add(managedConnection);
+                }
+                managedConnection.setInForeground(false);
+                trimRecentlyVisibleLocked(mRecentBindingLimit, mRemoveStrongBindingDelay);
+            }
+        }
+    }
+
+    /**
+     * Releases the recent bindings of the least recently visible services until at most |limit|
+     * remain. Consecutive releases are |delay| milliseconds apart, so the services are
+     * downgraded one at a time.
+     */
+    private void trimRecentlyVisibleLocked(int limit, long delay) {
+        long removeDelay = delay;
+        while (mRecentlyVisible.size() > limit) {
+            mRecentlyVisible.remove(0).setRecentlyVisible(false, removeDelay);
+            removeDelay += delay;
         }
     }
 
@@ -258,6 +356,33 @@ class BindingManagerImpl implements BindingManager {
             mBoundForBackgroundPeriod.setBoundForBackgroundPeriod(false);
             mBoundForBackgroundPeriod = null;
         }
+        synchronized (mLastInForegroundLock) {
+            mRecentBindingLimit = mMaxRecentBindingCount;
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        synchronized (mLastInForegroundLock) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                mRecentBindingLimit = 0;
+                trimRecentlyVisibleLocked(0, 0);
+                return;
+            }
+
+            int limit = mRecentBindingLimit;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                limit = 0;
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                limit = Math.min(limit, mMaxRecentBindingCount / 2);
+            } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+                limit = Math.min(limit, mMaxRecentBindingCount - 1);
+            }
+            mRecentBindingLimit = Math.max(0, limit);
+            trimRecentlyVisibleLocked(mRecentBindingLimit, mRemoveStrongBindingDelay);
+        }
     }
 
     @Override
@@ -278,7 +403,22 @@ class BindingManagerImpl implements BindingManager {
         synchronized (mManagedConnections) {
             managedConnection = mManagedConnections.get(pid);
         }
-        if (managedConnection != null) managedConnection.clearConnection();
+        if (managedConnection == null) return;
+
+        synchronized (mLastInForegroundLock) {
+            mRecentlyVisible.remove(managedConnection);
+        }
+        managedConnection.clearConnection();
+    }
+
+    @Override
+    public int getBindingState(int pid) {
+        ManagedConnection managedConnection;
+        synchronized (mManagedConnections) {
+            managedConnection = mManagedConnections.get(pid);
+        }
+        return managedConnection != null
+                ? managedConnection.getBindingState() : BINDING_STATE_UNKNOWN;
     }
 
     /** @return true iff the connection reference is no longer held */
@@ -4,7 +4,10 @@
 
 package org.chromium.content.browser;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
@@ -12,6 +15,8 @@ import com.google.common.annotations.VisibleForTesting;
 
 import org.chromium.base.CalledByNative;
 import org.chromium.base.JNINamespace;
+import org.chromium.base.MemoryPressureListener;
+import org.chromium.base.SysUtils;
 import org.chromium.base.ThreadUtils;
 import org.chromium.base.library_loader.Linker;
 import org.chromium.content.app.ChildProcessService;
@@ -21,9 +26,12 @@ import org.chromium.content.app.SandboxedProcessService;
 import org.chromium.content.common.IChildProcessCallback;
 import org.chromium.content.common.IChildProcessService;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class provides the method to start/stop ChildProcess called by native.
@@ -67,6 +75,17 @@ public class ChildProcessLauncher {
         private Class<? extends ChildProcessService> mChildClass;
         private final boolean mInSandbox;
 
+        // Started connections waiting to be handed out by takeWarmConnection(), oldest first.
+        // SHOULD BE ACCESSED WITH mConnectionLock.
+        private final ArrayDeque<ChildProcessConnection> mWarmConnections =
+                new ArrayDeque<ChildProcessConnection>();
+        // The configured number of warm connections, and a lower limit applied under memory
+        // pressure. SHOULD BE ACCESSED WITH mConnectionLock.
+        private int mWarmPoolSize;
+        private int mWarmPoolLimit = Integer.MAX_VALUE;
+        private int mWarmHitCount;
+        private int mWarmMissCount;
+
         public ChildConnectionAllocator(boolean inSandbox) {
             int numChildServices = inSandbox ?
                     MAX_REGISTERED_SANDBOXED_SERVICES : MAX_REGISTERED_PRIVILEGED_SERVICES;
@@ -100,6 +119,85 @@ public class ChildProcessLauncher {
             }
         }
 
+        /**
+         * Sets how many started connections are kept ready. At least one service is always
+         * left for connections started on demand.
+         */
+        public void setWarmPoolSize(int size) {
+            synchronized (mConnectionLock) {
+                mWarmPoolSize = Math.max(0, Math.min(size, mChildProcessConnections.length - 1));
+            }
+        }
+
+        /**
+         * @return A started connection from the warm pool, or null if the pool is empty.
+         */
+        public ChildProcessConnection takeWarmConnection() {
+            synchronized (mConnectionLock) {
+                ChildProcessConnection connection = mWarmConnections.poll();
+                if (connection != null) {
+                    mWarmHitCount++;
+                } else {
+                    mWarmMissCount++;
+                }
+                return connection;
+            }
+        }
+
+        public void addWarmConnection(ChildProcessConnection connection) {
+            synchronized (mConnectionLock) {
+                mWarmConnections.add(connection);
+            }
+        }
+
+        /**
+         * @return The number of connections missing from the warm pool.
+         */
+        public int getWarmPoolDeficit() {
+            synchronized (mConnectionLock) {
+                return Math.min(mWarmPoolSize, mWarmPoolLimit) - mWarmConnections.size();
+            }
+        }
+
+        /**
+         * Limits the warm pool to |limit| connections until the limit is lifted.
+         * @return The connections removed from the pool, which the caller must stop and free.
+         */
+        public List<ChildProcessConnection> limitWarmPool(int limit) {
+            List<ChildProcessConnection> removed = new ArrayList<ChildProcessConnection>();
+            synchronized (mConnectionLock) {
+                mWarmPoolLimit = Math.max(0, limit);
+                while (mWarmConnections.size() > mWarmPoolLimit) {
+                    removed.add(mWarmConnections.pollLast());
+                }
+            }
+            return removed;
+        }
+
+        public void liftWarmPoolLimit() {
+            synchronized (mConnectionLock) {
+                mWarmPoolLimit = Integer.MAX_VALUE;
+            }
+        }
+
+        public int getWarmPoolSize() {
+            synchronized (mConnectionLock) {
+                return mWarmPoolSize;
+            }
+        }
+
+        public int getWarmHitCount() {
+            synchronized (mConnectionLock) {
+                return mWarmHitCount;
+            }
+        }
+
+        public int getWarmMissCount() {
+            synchronized (mConnectionLock) {
+                return mWarmMissCount;
+            }
+        }
+
         public void free(ChildProcessConnection connection) {
             synchronized (mConnectionLock) {
                 int slot = connection.getServiceNumber();
@@ -208,8 +306,61 @@ public class ChildProcessLauncher {
     private static Map<Integer, ChildProcessConnection> sServiceMap =
             new ConcurrentHashMap<Integer, ChildProcessConnection>();
 
-    // A pre-allocated and pre-bound connection ready for connection setup, or null.
-    private static ChildProcessConnection sSpareSandboxedConnection = null;
+    // Default number of pre-bound connections kept ready for connection setup.
+    private static final int DEFAULT_SANDBOXED_WARM_POOL_SIZE = 1;
+    private static final int DEFAULT_PRIVILEGED_WARM_POOL_SIZE = 0;
+
+    // The application context used to refill the warm pools, set by warmUp().
+    private static Context sWarmPoolContext;
+    // Serializes refills so that concurrent ones don't overfill the pools.
+    private static final Object sWarmPoolRefillLock = new Object();
+    private static final AtomicBoolean sWarmPoolRefillScheduled = new AtomicBoolean();
+    private static boolean sMemoryPressureObserverAdded = false;
+
+    // Time from start() to the connection being established, split by whether the connection
+    // came from a warm pool. Guarded by sConnectTimeStats.
+    private static final long[] sConnectTimeStats = new long[4];
+    private static final int WARM_CONNECT_COUNT = 0;
+    private static final int WARM_CONNECT_TIME_MS = 1;
+    private static final int COLD_CONNECT_COUNT = 2;
+    private static final int COLD_CONNECT_TIME_MS = 3;
+
+    static {
+        // The low-end cap is applied by warmUp(), once the command line is available.
+        sSandboxedChildConnectionAllocator.setWarmPoolSize(DEFAULT_SANDBOXED_WARM_POOL_SIZE);
+        sPrivilegedChildConnectionAllocator.setWarmPoolSize(DEFAULT_PRIVILEGED_WARM_POOL_SIZE);
+    }
+
+    // Trims the warm pools and the oom bindings under memory pressure.
+    private static final MemoryPressureListener.Observer sMemoryPressureObserver =
+            new MemoryPressureListener.Observer() {
+                @Override
+                public void onTrimMemory(int level) {
+                    sBindingManager.onTrimMemory(level);
+                    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                            || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                        limitWarmPools(0, 0);
+                    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                            || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                        limitWarmPools(
+                                sSandboxedChildConnectionAllocator.getWarmPoolSize() / 2,
+                                sPrivilegedChildConnectionAllocator.getWarmPoolSize() / 2);
+                    }
+                }
+            };
+
+    private static void ensureMemoryPressureObserverAdded() {
+        synchronized (ChildProcessLauncher.class) {
+            if (sMemoryPressureObserverAdded) return;
+            sMemoryPressureObserverAdded = true;
+        }
+        ThreadUtils.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                MemoryPressureListener.addObserver(sMemoryPressureObserver);
+            }
+        });
+    }
 
     // Manages oom bindings used to bind chind services.
     private static BindingManager sBindingManager = BindingManagerImpl.createBindingManager();
@@ -228,6 +379,14 @@ public class ChildProcessLauncher {
         return sBindingManager.isOomProtected(pid);
     }
 
+    /**
+     * @return The BindingManager.BINDING_STATE_* value of the child process with the given pid,
+     *         for diagnostics. This may be called from any thread.
+     */
+    public static int getBindingState(int pid) {
+        return sBindingManager.getBindingState(pid);
+    }
+
     /**
      * Called when the embedding application is sent to background.
      */
@@ -236,10 +395,14 @@ public class ChildProcessLauncher {
     }
 
     /**
-     * Called when the embedding application is brought to foreground.
+     * Called when the embedding application is brought to foreground. Warm pools that were
+     * shrunk under memory pressure are refilled.
      */
     public static void onBroughtToForeground() {
         sBindingManager.onBroughtToForeground();
+        sSandboxedChildConnectionAllocator.liftWarmPoolLimit();
+        sPrivilegedChildConnectionAllocator.liftWarmPoolLimit();
+        scheduleWarmPoolRefill();
     }
 
     /**
@@ -260,16 +423,119 @@ public class ChildProcessLauncher {
 
     /**
      * Should be called early in startup so the work needed to spawn the child process can be done
-     * in parallel to other startup work. Must not be called on the UI thread. Spare connection is
-     * created in sandboxed child process.
+     * in parallel to other startup work. Must not be called on the UI thread. Fills the warm
+     * pools, which are refilled in the background from then on whenever a connection is taken.
      * @param context the application context used for the connection.
      */
     public static void warmUp(Context context) {
+        assert !ThreadUtils.runningOnUiThread();
+        synchronized (ChildProcessLauncher.class) {
+            sWarmPoolContext = context.getApplicationContext();
+        }
+        ensureMemoryPressureObserverAdded();
+        setWarmPoolSize(sSandboxedChildConnectionAllocator.getWarmPoolSize(),
+                sPrivilegedChildConnectionAllocator.getWarmPoolSize());
+        refillWarmPools();
+    }
+
+    /**
+     * Sets how many pre-bound connections are kept ready for sandboxed and privileged child
+     * processes. Low-end devices keep at most one sandboxed connection and no privileged ones.
+     * Takes effect on the next refill.
+     */
+    public static void setWarmPoolSize(int sandboxed, int privileged) {
+        if (SysUtils.isLowEndDevice()) {
+            sandboxed = Math.min(sandboxed, 1);
+            privileged = 0;
+        }
+        sSandboxedChildConnectionAllocator.setWarmPoolSize(sandboxed);
+        sPrivilegedChildConnectionAllocator.setWarmPoolSize(privileged);
+        limitWarmPools(sandboxed, privileged);
+        sSandboxedChildConnectionAllocator.liftWarmPoolLimit();
+        sPrivilegedChildConnectionAllocator.liftWarmPoolLimit();
+    }
+
+    /**
+     * @return The number of child processes started with a warm connection.
+     */
+    public static int getWarmPoolHitCount() {
+        return sSandboxedChildConnectionAllocator.getWarmHitCount()
+                + sPrivilegedChildConnectionAllocator.getWarmHitCount();
+    }
+
+    /**
+     * @return The number of child processes that had to bind a new connection.
+     */
+    public static int getWarmPoolMissCount() {
+        return sSandboxedChildConnectionAllocator.getWarmMissCount()
+                + sPrivilegedChildConnectionAllocator.getWarmMissCount();
+    }
+
+    /**
+     * @param fromWarmPool Whether to report connections taken from a warm pool or the others.
+     * @return The average time from start() to the connection being established, or -1 if no
+     *         such connection was established yet.
+     */
+    public static long getAverageConnectTimeMs(boolean fromWarmPool) {
+        synchronized (sConnectTimeStats) {
+            long count = sConnectTimeStats[fromWarmPool ? WARM_CONNECT_COUNT : COLD_CONNECT_COUNT];
+            if (count == 0) return -1;
+            return sConnectTimeStats[fromWarmPool ? WARM_CONNECT_TIME_MS : COLD_CONNECT_TIME_MS]
+                    / count;
+        }
+    }
+
+    private static void recordConnectTime(boolean fromWarmPool, long connectTimeMs) {
+        synchronized (sConnectTimeStats) {
+            sConnectTimeStats[fromWarmPool ? WARM_CONNECT_COUNT : COLD_CONNECT_COUNT]++;
+            sConnectTimeStats[fromWarmPool ? WARM_CONNECT_TIME_MS : COLD_CONNECT_TIME_MS] +=
+                    connectTimeMs;
+        }
+    }
+
+    private static void scheduleWarmPoolRefill() {
         synchronized (ChildProcessLauncher.class) {
-            assert !ThreadUtils.runningOnUiThread();
-            if (sSpareSandboxedConnection == null) {
-                sSpareSandboxedConnection = allocateBoundConnection(context, null, true);
+            if (sWarmPoolContext == null) return;
+        }
+        if (!sWarmPoolRefillScheduled.compareAndSet(false, true)) return;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                sWarmPoolRefillScheduled.set(false);
+                refillWarmPools();
             }
+        });
+    }
+
+    private static void refillWarmPools() {
+        Context context;
+        synchronized (ChildProcessLauncher.class) {
+            context = sWarmPoolContext;
+        }
+        if (context == null) return;
+        synchronized (sWarmPoolRefillLock) {
+            refillWarmPool(context, true);
+            refillWarmPool(context, false);
+        }
+    }
+
+    private static void refillWarmPool(Context context, boolean inSandbox) {
+        ChildConnectionAllocator allocator = getConnectionAllocator(inSandbox);
+        while (allocator.getWarmPoolDeficit() > 0) {
+            ChildProcessConnection connection =
+                    allocateBoundConnection(context, null, inSandbox);
+            if (connection == null) return;
+            allocator.addWarmConnection(connection);
+        }
+    }
+
+    private static void limitWarmPools(int sandboxed, int privileged) {
+        List<ChildProcessConnection> removed =
+                sSandboxedChildConnectionAllocator.limitWarmPool(sandboxed);
+        removed.addAll(sPrivilegedChildConnectionAllocator.limitWarmPool(privileged));
+        for (ChildProcessConnection connection : removed) {
+            connection.stop();
+            freeConnection(connection);
         }
     }
 
@@ -328,14 +594,12 @@ public class ChildProcessLauncher {
             inSandbox = false;
         }
 
-        ChildProcessConnection allocatedConnection = null;
-        synchronized (ChildProcessLauncher.class) {
-            if (inSandbox) {
-                allocatedConnection = sSpareSandboxedConnection;
-                sSpareSandboxedConnection = null;
-            }
-        }
-        if (allocatedConnection == null) {
+        ensureMemoryPressureObserverAdded();
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        ChildProcessConnection allocatedConnection =
+                getConnectionAllocator(inSandbox).takeWarmConnection();
+        final boolean fromWarmPool = allocatedConnection != null;
+        if (!fromWarmPool) {
             allocatedConnection = allocateBoundConnection(context, commandLine, inSandbox);
             if (allocatedConnection == null) {
                 // Notify the native code so it can free the heap allocated callback.
@@ -343,6 +607,7 @@ public class ChildProcessLauncher {
                 return;
             }
         }
+        scheduleWarmPoolRefill();
         final ChildProcessConnection connection = allocatedConnection;
         Log.d(TAG, "Setting up connection to process: slot=" + connection.getServiceNumber());
 
@@ -352,6 +617,8 @@ public class ChildProcessLauncher {
                     public void onConnected(int pid) {
                         Log.d(TAG, "on connect callback, pid=" + pid + " context=" + clientContext);
                         if (pid != NULL_PROCESS_HANDLE) {
+                            recordConnectTime(fromWarmPool,
+                                    SystemClock.elapsedRealtime() - startTimeMs);
                             sBindingManager.addNewConnection(pid, connection);
                             sServiceMap.put(pid, connection);
                         } else {
@@ -108,6 +108,11 @@ public class ContentViewCore
     // Length of the delay (in ms) before fading in handles after the last page movement.
     private static final int TEXT_HANDLE_FADE_IN_DELAY = 300;
 
+    // Policies for merging touch moves, see setTouchMoveCoalescingPolicy().
+    public static final int TOUCH_MOVE_COALESCING_OFF = TouchMoveCoalescer.POLICY_OFF;
+    public static final int TOUCH_MOVE_COALESCING_PER_VSYNC = TouchMoveCoalescer.POLICY_PER_VSYNC;
+    public static final int TOUCH_MOVE_COALESCING_ADAPTIVE = TouchMoveCoalescer.POLICY_ADAPTIVE;
+
     // If the embedder adds a JavaScript interface object that contains an indirect reference to
     // the ContentViewCore, then storing a strong ref to the interface object on the native
     // side would prevent garbage collection of the ContentViewCore (as that strong ref would
@@ -826,6 +831,9 @@ public class ContentViewCore
      * been called.
      */
     public void destroy() {
+        if (mContentViewGestureHandler != null) {
+            mContentViewGestureHandler.discardPendingTouchMoves();
+        }
         if (mNativeContentViewCore != 0) {
             nativeOnJavaContentViewCoreDestroyed(mNativeContentViewCore);
         }
@@ -1181,6 +1189,32 @@ public class ContentViewCore
         mContentViewGestureHandler.setIgnoreRemainingTouchEvents();
     }
 
+    /**
+     * Sets whether ACTION_MOVE events arriving within one vsync interval are merged into a
+     * single batched dispatch.
+     * @param policy One of TOUCH_MOVE_COALESCING_OFF, TOUCH_MOVE_COALESCING_PER_VSYNC or
+     *               TOUCH_MOVE_COALESCING_ADAPTIVE.
+     */
+    public void setTouchMoveCoalescingPolicy(int policy) {
+        mContentViewGestureHandler.setTouchMoveCoalescingPolicy(policy);
+    }
+
+    /**
+     * @return The current touch move coalescing policy.
+     */
+    public int getTouchMoveCoalescingPolicy() {
+        return mContentViewGestureHandler.getTouchMoveCoalescingPolicy();
+    }
+
+    /**
+     * @return The number of move events merged into the last coalesced dispatch, or 0 if
+     *         coalescing is off.
+     */
+    public int getLastFrameCoalescedTouchMoveCount() {
+        TouchMoveCoalescer coalescer = mContentViewGestureHandler.getTouchMoveCoalescer();
+        return coalescer != null ? coalescer.getLastFrameCoalescedCount() : 0;
+    }
+
     @SuppressWarnings("unused")
     @CalledByNative
     private void onFlingStartEventConsumed(int vx, int vy) {
@@ -68,14 +68,20 @@ class ContentViewGestureHandler {
     private final Bundle mExtraParamBundleScrollStart;
     private final Bundle mExtraParamBundleDoubleTapDragZoom;
     private final Bundle mExtraParamBundlePinchBy;
+    private final Context mContext;
     private GestureDetector mGestureDetector;
     private OnGestureListener mListener;
     private OnDoubleTapListener mDoubleTapListener;
     private ScaleGestureDetector mMultiTouchDetector;
     private ScaleGestureListener mMultiTouchListener;
-    private MotionEvent mCurrentDownEvent;
+    // The down event of the current touch sequence, empty while there is none. Reused across
+    // sequences instead of copying every down event.
+    private final TouchPointBatch mCurrentDown = new TouchPointBatch();
     private final MotionEventDelegate mMotionEventDelegate;
 
+    // Merges ACTION_MOVE events per vsync; null while coalescing is off.
+    private TouchMoveCoalescer mTouchMoveCoalescer;
+
     // Remember whether onShowPress() is called. If it is not, in onSingleTapConfirmed()
     // we will first show the press state, then trigger the click.
     private boolean mShowPressIsCalled;
@@ -191,6 +197,7 @@ class ContentViewGestureHandler {
         mExtraParamBundleDoubleTapDragZoom = new Bundle();
         mExtraParamBundlePinchBy = new Bundle();
 
+        mContext = context;
         mMotionEventDelegate = delegate;
         mSnapScrollController = new SnapScrollController(context);
         mPxToDp = 1.0f / context.getResources().getDisplayMetrics().density;
@@ -694,7 +701,7 @@ class ContentViewGestureHandler {
         if (mIgnoreRemainingTouchEvents) return;
 
         MotionEvent me = obtainActionCancelMotionEvent();
-        if (mCurrentDownEvent != null) {
+        if (!mCurrentDown.isEmpty()) {
             // Only insert a synthetic event if there's an active touch sequence.
             onTouchEvent(me);
         } else {
@@ -705,7 +712,7 @@ class ContentViewGestureHandler {
         }
         me.recycle();
 
-        assert mCurrentDownEvent == null;
+        assert mCurrentDown.isEmpty();
         mIgnoreRemainingTouchEvents = true;
     }
 
@@ -738,12 +745,70 @@ class ContentViewGestureHandler {
                 }
             }
 
+            if (mTouchMoveCoalescer != null
+                    && canHandle(event) && mTouchMoveCoalescer.offer(event)) {
+                return true;
+            }
+
             return processTouchEvent(event);
         } finally {
             TraceEvent.end("onTouchEvent");
         }
     }
 
+    /**
+     * Sets how ACTION_MOVE events are coalesced before being dispatched.
+     * @param policy One of {@link TouchMoveCoalescer#POLICY_OFF},
+     *               {@link TouchMoveCoalescer#POLICY_PER_VSYNC} or
+     *               {@link TouchMoveCoalescer#POLICY_ADAPTIVE}.
+     */
+    void setTouchMoveCoalescingPolicy(int policy) {
+        if (policy == TouchMoveCoalescer.POLICY_OFF) {
+            if (mTouchMoveCoalescer == null) return;
+            mTouchMoveCoalescer.flush();
+            mTouchMoveCoalescer.destroy();
+            mTouchMoveCoalescer = null;
+            return;
+        }
+        if (mTouchMoveCoalescer == null) {
+            mTouchMoveCoalescer = new TouchMoveCoalescer(mContext,
+                    new TouchMoveCoalescer.Delegate() {
+                        @Override
+                        public void dispatchCoalescedTouchEvent(MotionEvent event) {
+                            if (mIgnoreRemainingTouchEvents) return;
+                            processTouchEvent(event);
+                        }
+                    }, policy);
+        } else {
+            mTouchMoveCoalescer.setPolicy(policy);
+        }
+    }
+
+    /**
+     * Drops any pending coalesced move without dispatching it and stops coalescing. Called when
+     * the content view is destroyed, when nothing should reach native anymore.
+     */
+    void discardPendingTouchMoves() {
+        if (mTouchMoveCoalescer == null) return;
+        mTouchMoveCoalescer.destroy();
+        mTouchMoveCoalescer = null;
+    }
+
+    /**
+     * @return The current move coalescing policy.
+     */
+    int getTouchMoveCoalescingPolicy() {
+        return mTouchMoveCoalescer != null
+                ? mTouchMoveCoalescer.getPolicy() : TouchMoveCoalescer.POLICY_OFF;
+    }
+
+    /**
+     * @return The move coalescer, or null if coalescing is off. Exposed for statistics.
+     */
+    TouchMoveCoalescer getTouchMoveCoalescer() {
+        return mTouchMoveCoalescer;
+    }
+
     /**
      * Handle content view losing focus -- ensure that any remaining active state is removed.
      */
@@ -756,12 +821,12 @@ class ContentViewGestureHandler {
 
     private MotionEvent obtainActionCancelMotionEvent() {
         MotionEvent me = MotionEvent.obtain(
-                mCurrentDownEvent != null ?
-                    mCurrentDownEvent.getDownTime() : SystemClock.uptimeMillis(),
+                !mCurrentDown.isEmpty() ?
+                    mCurrentDown.getDownTime() : SystemClock.uptimeMillis(),
                 SystemClock.uptimeMillis(),
                 MotionEvent.ACTION_CANCEL, 0.0f,  0.0f,  0);
-        me.setSource(mCurrentDownEvent != null ?
-            mCurrentDownEvent.getSource() : InputDevice.SOURCE_CLASS_POINTER);
+        me.setSource(!mCurrentDown.isEmpty() ?
+            mCurrentDown.getSource() : InputDevice.SOURCE_CLASS_POINTER);
         return me;
     }
 
@@ -772,6 +837,7 @@ class ContentViewGestureHandler {
      * FrameLoader::transitionToCommitted iff the page ever had touch handlers.
      */
     void resetGestureHandlers() {
+        if (mTouchMoveCoalescer != null) mTouchMoveCoalescer.cancel();
         MotionEvent me = obtainActionCancelMotionEvent();
         mGestureDetector.onTouchEvent(me);
         processTouchEventForMultiTouch(me);
@@ -792,7 +858,7 @@ class ContentViewGestureHandler {
                 endDoubleTapDragIfNecessary(event);
             } else if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
                 mGestureDetector.setIsLongpressEnabled(true);
-                mCurrentDownEvent = MotionEvent.obtain(event);
+                TouchPoint.createTouchPoints(event, mCurrentDown);
             }
 
             boolean handled = mGestureDetector.onTouchEvent(event);
@@ -810,8 +876,7 @@ class ContentViewGestureHandler {
                     endTouchScrollIfNecessary(event.getEventTime(), true);
                 }
 
-                if (mCurrentDownEvent != null) recycleEvent(mCurrentDownEvent);
-                mCurrentDownEvent = null;
+                mCurrentDown.clear();
             }
             return handled;
         } finally {
@@ -842,10 +907,6 @@ class ContentViewGestureHandler {
         return false;
     }
 
-    private void recycleEvent(MotionEvent event) {
-        event.recycle();
-    }
-
     private boolean sendMotionEventAsGesture(
             int type, MotionEvent event, Bundle extraParams) {
         return sendGesture(type, event.getEventTime(),
@@ -858,7 +919,7 @@ class ContentViewGestureHandler {
         // The only valid gestures that can occur after the touch sequence has
         // ended are SHOW_PRESS and SINGLE_TAP_CONFIRMED, potentially triggered
         // after the double-tap delay window times out.
-        if (mCurrentDownEvent == null
+        if (mCurrentDown.isEmpty()
                 && type != GestureEventType.SINGLE_TAP_CONFIRMED
                 && type != GestureEventType.SHOW_PRESS) {
             return false;
@@ -884,7 +945,7 @@ class ContentViewGestureHandler {
      */
     private boolean canHandle(MotionEvent ev) {
         return ev.getAction() == MotionEvent.ACTION_DOWN ||
-                (mCurrentDownEvent != null && mCurrentDownEvent.getDownTime() == ev.getDownTime());
+                (!mCurrentDown.isEmpty() && mCurrentDown.getDownTime() == ev.getDownTime());
     }
 
     /**
@@ -908,8 +969,12 @@ class ContentViewGestureHandler {
      * a down event;
      */
     void sendShowPressedStateGestureForTesting() {
-        if (mCurrentDownEvent == null) return;
-        mListener.onShowPress(mCurrentDownEvent);
+        if (mCurrentDown.isEmpty()) return;
+        MotionEvent down = MotionEvent.obtain(mCurrentDown.getDownTime(),
+                mCurrentDown.getEventTime(), MotionEvent.ACTION_DOWN,
+                mCurrentDown.getX(0), mCurrentDown.getY(0), 0);
+        mListener.onShowPress(down);
+        down.recycle();
     }
 
     /**
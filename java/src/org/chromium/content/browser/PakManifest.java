@@ -0,0 +1,122 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The list of paks that {@link ResourceExtractor} has extracted, with the length of each one.
+ * It is rewritten as a whole, through a temporary file, once extraction completes, so
+ * its presence means every listed pak was fully written. Paks can still be removed afterwards,
+ * so a listed pak only counts as extracted while its file has the recorded length.
+ */
+class PakManifest {
+    private static final String LOGTAG = "PakManifest";
+
+    static final String FILENAME = "pak_manifest";
+
+    /**
+     * The record of a single extracted pak.
+     */
+    static class Entry {
+        final String mName;
+        final long mLength;
+
+        Entry(String name, long length) {
+            mName = name;
+            mLength = length;
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * Reads the manifest from |file|. A missing or malformed manifest reads as empty.
+     */
+    static PakManifest read(File file) {
+        PakManifest manifest = new PakManifest();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 2) throw new IOException("Malformed line: " + line);
+                manifest.put(new Entry(fields[0], Long.parseLong(fields[1])));
+            }
+        } catch (FileNotFoundException e) {
+            return manifest;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Ignoring unreadable pak manifest: " + e.getMessage());
+            return new PakManifest();
+        } catch (NumberFormatException e) {
+            Log.w(LOGTAG, "Ignoring malformed pak manifest: " + e.getMessage());
+            return new PakManifest();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing more to read.
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Atomically replaces |file| with this manifest.
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for (Entry entry : mEntries.values()) {
+                writer.write(entry.mName + "\t" + entry.mLength + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Unable to rename " + tmp);
+    }
+
+    void put(Entry entry) {
+        mEntries.put(entry.mName, entry);
+    }
+
+    void remove(String name) {
+        mEntries.remove(name);
+    }
+
+    Entry get(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * @return Whether |name| is listed and its file in |dir| still has the recorded length.
+     */
+    boolean isIntact(File dir, String name) {
+        Entry entry = mEntries.get(name);
+        return entry != null && new File(dir, name).length() == entry.mLength;
+    }
+
+    boolean areAllIntact(File dir, String[] names) {
+        for (String name : names) {
+            if (!isIntact(dir, name)) return false;
+        }
+        return true;
+    }
+}
@@ -8,8 +8,10 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -17,14 +19,30 @@ import org.chromium.base.PathUtils;
 import org.chromium.ui.base.LocalizationUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.HashSet;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -37,6 +55,11 @@ public class ResourceExtractor {
     private static final String LAST_LANGUAGE = "Last language";
     private static final String PAK_FILENAMES = "Pak filenames";
 
+    // Paks are copied in parallel, one task per pak.
+    private static final int EXTRACTION_THREAD_COUNT =
+            Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 5;
+
     private static String[] sMandatoryPaks = null;
 
     // By default, we attempt to extract a pak file for the users
@@ -44,40 +67,63 @@ public class ResourceExtractor {
     // change this behavior.
     private static boolean sExtractImplicitLocalePak = true;
 
-    private class ExtractTask extends AsyncTask<Void, Void, Void> {
-        private static final int BUFFER_SIZE = 16 * 1024;
+    // When set, mandatory locale paks for languages other than the current one are only
+    // extracted when they are first asked for through waitForCompletion(String...).
+    private static boolean sLazyExtraction = false;
+
+    // Matches locale paks such as "fr.pak" or "en-US.pak"; group 1 is the language.
+    private static final Pattern LOCALE_PAK_PATTERN =
+            Pattern.compile("([a-z]{2,3})(-\\w+)?\\.pak");
 
+    // Extraction priorities, lower values run first.
+    private static final int PRIORITY_ON_DEMAND = 0;
+    private static final int PRIORITY_CORE = 1;
+    private static final int PRIORITY_CURRENT_LOCALE = 2;
+
+    private class ExtractTask extends AsyncTask<Void, Void, Void> {
         public ExtractTask() {
         }
 
         @Override
         protected Void doInBackground(Void... unused) {
+            try {
+                extract();
+            } finally {
+                // Never leave waitForCompletion(String...) callers blocked.
+                mPakTasksScheduled.countDown();
+            }
+            return null;
+        }
+
+        private void extract() {
             if (!mOutputDir.exists() && !mOutputDir.mkdirs()) {
                 Log.e(LOGTAG, "Unable to create pak resources directory!");
-                return null;
+                return;
             }
 
             String timestampFile = checkPakTimestamp();
             if (timestampFile != null) {
-                deleteFiles(mContext);
+                deletePakFiles(mOutputDir);
             }
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-            HashSet<String> filenames = (HashSet<String>) prefs.getStringSet(
-                    PAK_FILENAMES, new HashSet<String>());
+            // The set of extracted paks used to be kept in the preferences; it now lives in
+            // the manifest next to the paks.
+            if (prefs.contains(PAK_FILENAMES)) prefs.edit().remove(PAK_FILENAMES).apply();
+            PakManifest manifest = PakManifest.read(new File(mOutputDir, PakManifest.FILENAME));
+            synchronized (mManifestLock) {
+                mManifest = manifest;
+            }
             String currentLocale = LocalizationUtils.getDefaultLocale();
             String currentLanguage = currentLocale.split("-", 2)[0];
 
             if (prefs.getString(LAST_LANGUAGE, "").equals(currentLanguage)
-                    &&  filenames.size() >= sMandatoryPaks.length) {
-                boolean filesPresent = true;
-                for (String file : filenames) {
-                    if (!new File(mOutputDir, file).exists()) {
-                        filesPresent = false;
-                        break;
-                    }
-                }
-                if (filesPresent) return null;
+                    && manifestContainsAll(getEagerMandatoryPaks(currentLanguage))) {
+                // The manifest is only written once every listed pak is in place, so checking
+                // that their lengths still match is enough.
+                deferRemainingMandatoryPaks(currentLanguage);
+                recordEagerExtractionDone();
+                return;
             } else {
                 prefs.edit().putString(LAST_LANGUAGE, currentLanguage).apply();
             }
@@ -99,63 +145,45 @@ public class ResourceExtractor {
             Pattern paksToInstall = Pattern.compile(p.toString());
 
             AssetManager manager = mContext.getResources().getAssets();
+            List<Future<PakManifest.Entry>> eagerTasks = new ArrayList<Future<PakManifest.Entry>>();
             try {
-                // Loop through every asset file that we have in the APK, and look for the
+                // Loop through every asset file that we have in the APK, and queue the
                 // ones that we need to extract by trying to match the Patterns that we
-                // created above.
-                byte[] buffer = null;
+                // created above. Each pak is copied by its own task, the core resources
+                // and the current locale first.
                 String[] files = manager.list("");
                 for (String file : files) {
                     if (!paksToInstall.matcher(file).matches()) {
                         continue;
                     }
-                    File output = new File(mOutputDir, file);
-                    if (output.exists()) {
+                    if (manifestContains(file)) {
                         continue;
                     }
-
-                    InputStream is = null;
-                    OutputStream os = null;
-                    try {
-                        is = manager.open(file);
-                        os = new FileOutputStream(output);
-                        Log.i(LOGTAG, "Extracting resource " + file);
-                        if (buffer == null) {
-                            buffer = new byte[BUFFER_SIZE];
-                        }
-
-                        int count = 0;
-                        while ((count = is.read(buffer, 0, BUFFER_SIZE)) != -1) {
-                            os.write(buffer, 0, count);
-                        }
-                        os.flush();
-
-                        // Ensure something reasonable was written.
-                        if (output.length() == 0) {
-                            throw new IOException(file + " extracted with 0 length!");
-                        }
-
-                        filenames.add(file);
-                    } finally {
-                        try {
-                            if (is != null) {
-                                is.close();
-                            }
-                        } finally {
-                            if (os != null) {
-                                os.close();
-                            }
-                        }
+                    if (isDeferredPak(file, currentLanguage)) {
+                        mDeferredPaks.put(file, new PakExtractor(manager, file, mOutputDir));
+                        continue;
                     }
+                    int priority = isLocalePak(file) ? PRIORITY_CURRENT_LOCALE : PRIORITY_CORE;
+                    PakTask task = new PakTask(new PakExtractor(manager, file, mOutputDir),
+                            priority);
+                    mPakTasks.put(file, task);
+                    eagerTasks.add(task);
+                    getExecutor().execute(task);
+                }
+                mPakTasksScheduled.countDown();
+
+                for (Future<PakManifest.Entry> task : eagerTasks) {
+                    recordExtractedPak(task.get());
                 }
             } catch (IOException e) {
-                // TODO(benm): See crbug/152413.
-                // Try to recover here, can we try again after deleting files instead of
-                // returning null? It might be useful to gather UMA here too to track if
-                // this happens with regularity.
-                Log.w(LOGTAG, "Exception unpacking required pak resources: " + e.getMessage());
-                deleteFiles(mContext);
-                return null;
+                onExtractionFailed(e);
+                return;
+            } catch (ExecutionException e) {
+                onExtractionFailed(e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                onExtractionFailed(e);
+                return;
             }
 
             // Finished, write out a timestamp file if we need to.
@@ -169,10 +197,17 @@ public class ResourceExtractor {
                     Log.w(LOGTAG, "Failed to write resource pak timestamp!");
                 }
             }
-            // TODO(yusufo): Figure out why remove is required here.
-            prefs.edit().remove(PAK_FILENAMES).apply();
-            prefs.edit().putStringSet(PAK_FILENAMES, filenames).apply();
-            return null;
+            writeManifest();
+            recordEagerExtractionDone();
+        }
+
+        private void onExtractionFailed(Throwable e) {
+            // TODO(benm): See crbug/152413.
+            // Try to recover here, can we try again after deleting files instead of
+            // returning null? It might be useful to gather UMA here too to track if
+            // this happens with regularity.
+            Log.w(LOGTAG, "Exception unpacking required pak resources: " + e.getMessage());
+            deleteFiles(mContext);
         }
 
         // Looks for a timestamp file on disk that indicates the version of the APK that
@@ -221,10 +256,141 @@ public class ResourceExtractor {
         }
     }
 
+    /**
+     * Copies a single pak out of the APK. Uncompressed paks are memory-mapped and written with
+     * a single channel write; compressed ones are streamed through the channel API. The pak is
+     * written to a temporary file that is renamed into place once complete.
+     */
+    private static class PakExtractor implements Callable<PakManifest.Entry> {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final AssetManager mManager;
+        private final String mName;
+        private final File mOutputDir;
+
+        PakExtractor(AssetManager manager, String name, File outputDir) {
+            mManager = manager;
+            mName = name;
+            mOutputDir = outputDir;
+        }
+
+        @Override
+        public PakManifest.Entry call() throws IOException {
+            File output = new File(mOutputDir, mName);
+            File tmp = new File(mOutputDir, mName + ".tmp");
+            Log.i(LOGTAG, "Extracting resource " + mName);
+
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                FileChannel out = os.getChannel();
+                AssetFileDescriptor afd = openFd();
+                if (afd != null) {
+                    copyMapped(afd, out);
+                } else {
+                    copyStreamed(out);
+                }
+            } finally {
+                os.close();
+            }
+
+            // Ensure something reasonable was written.
+            long length = tmp.length();
+            if (length == 0) {
+                throw new IOException(mName + " extracted with 0 length!");
+            }
+            if (!tmp.renameTo(output)) {
+                throw new IOException("Unable to move " + mName + " into place!");
+            }
+            return new PakManifest.Entry(mName, length);
+        }
+
+        private AssetFileDescriptor openFd() {
+            try {
+                return mManager.openFd(mName);
+            } catch (IOException e) {
+                // Compressed assets can't be opened as a file descriptor.
+                return null;
+            }
+        }
+
+        private void copyMapped(AssetFileDescriptor afd, FileChannel out) throws IOException {
+            try {
+                FileChannel in = new FileInputStream(afd.getFileDescriptor()).getChannel();
+                MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY,
+                        afd.getStartOffset(), afd.getLength());
+                while (mapped.hasRemaining()) {
+                    out.write(mapped);
+                }
+            } finally {
+                afd.close();
+            }
+        }
+
+        private void copyStreamed(FileChannel out) throws IOException {
+            InputStream is = mManager.open(mName);
+            try {
+                ReadableByteChannel in = Channels.newChannel(is);
+                long position = 0;
+                long count;
+                while ((count = out.transferFrom(in, position, BUFFER_SIZE)) > 0) {
+                    position += count;
+                }
+            } finally {
+                is.close();
+            }
+        }
+    }
+
     private final Context mContext;
     private ExtractTask mExtractTask;
     private final File mOutputDir;
 
+    // The copy task of every pak being extracted, keyed by pak name. Filled in by the
+    // ExtractTask before it counts down mPakTasksScheduled.
+    private final Map<String, Future<PakManifest.Entry>> mPakTasks =
+            new ConcurrentHashMap<String, Future<PakManifest.Entry>>();
+    private final CountDownLatch mPakTasksScheduled = new CountDownLatch(1);
+
+    // Paks that are only extracted when first asked for, in lazy extraction mode.
+    private final Map<String, PakExtractor> mDeferredPaks =
+            new ConcurrentHashMap<String, PakExtractor>();
+
+    private final Object mManifestLock = new Object();
+    private PakManifest mManifest = new PakManifest();
+    // Set once the extracted paks have been deleted, after which the manifest is no longer
+    // written, as it could list paks that are gone. Guarded by mManifestLock.
+    private boolean mManifestDiscarded;
+
+    private final Object mExecutorLock = new Object();
+    private ThreadPoolExecutor mExecutor;
+    private final AtomicLong mTaskSequence = new AtomicLong();
+
+    // Startup phase timings, in milliseconds of SystemClock.elapsedRealtime().
+    private long mExtractionStartTimeMs;
+    private volatile long mEagerExtractionTimeMs = -1;
+    private final AtomicLong mTimeBlockedMs = new AtomicLong();
+
+    /**
+     * A pak copy that runs in priority order on the extraction executor.
+     */
+    private class PakTask extends FutureTask<PakManifest.Entry> implements Comparable<PakTask> {
+        private final int mPriority;
+        private final long mSequence;
+
+        PakTask(Callable<PakManifest.Entry> callable, int priority) {
+            super(callable);
+            mPriority = priority;
+            mSequence = mTaskSequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(PakTask other) {
+            if (mPriority != other.mPriority) return mPriority < other.mPriority ? -1 : 1;
+            if (mSequence != other.mSequence) return mSequence < other.mSequence ? -1 : 1;
+            return 0;
+        }
+    }
+
     private static ResourceExtractor sInstance;
 
     public static ResourceExtractor get(Context context) {
@@ -261,11 +427,28 @@ public class ResourceExtractor {
         sExtractImplicitLocalePak = extract;
     }
 
+    /**
+     * Enables lazy extraction. The core paks and the paks for the current locale are still
+     * extracted at startup, ahead of everything else, but mandatory locale paks for other
+     * languages are only extracted once they are passed to {@link #waitForCompletion(String...)},
+     * which callers must do before such a pak is loaded.
+     * @param lazy Whether to defer the extraction of other locale paks.
+     */
+    public static void setLazyExtraction(boolean lazy) {
+        assert (sInstance == null || sInstance.mExtractTask == null)
+                : "Must be called before startExtractingResources is called";
+        sLazyExtraction = lazy;
+    }
+
     private ResourceExtractor(Context context) {
         mContext = context;
         mOutputDir = getOutputDirFromContext(mContext);
     }
 
+    /**
+     * Blocks until extraction completes. In lazy extraction mode this does not include the
+     * deferred locale paks; use {@link #waitForCompletion(String...)} for those.
+     */
     public void waitForCompletion() {
         if (shouldSkipPakExtraction()) {
             return;
@@ -273,6 +456,7 @@ public class ResourceExtractor {
 
         assert mExtractTask != null;
 
+        long startTimeMs = SystemClock.elapsedRealtime();
         try {
             mExtractTask.get();
         } catch (CancellationException e) {
@@ -282,9 +466,184 @@ public class ResourceExtractor {
             deleteFiles(mContext);
         } catch (InterruptedException e3) {
             deleteFiles(mContext);
+        } finally {
+            mTimeBlockedMs.addAndGet(SystemClock.elapsedRealtime() - startTimeMs);
+        }
+    }
+
+    /**
+     * Blocks until the given paks have been extracted, without waiting for the others.
+     * Paks that did not need extracting are returned for immediately, and deferred paks are
+     * extracted ahead of anything else still queued. A pak that fails to extract is removed on
+     * its own, leaving the others in place.
+     * @param paks The names of the paks the caller is about to load.
+     */
+    public void waitForCompletion(String... paks) {
+        if (shouldSkipPakExtraction()) {
+            return;
+        }
+
+        assert mExtractTask != null;
+
+        long startTimeMs = SystemClock.elapsedRealtime();
+        try {
+            mPakTasksScheduled.await();
+            for (String pak : paks) {
+                Future<PakManifest.Entry> task = mPakTasks.get(pak);
+                if (task == null) task = extractDeferredPak(pak);
+                if (task == null) continue;
+                try {
+                    task.get();
+                } catch (CancellationException e) {
+                    discardPak(pak);
+                } catch (ExecutionException e) {
+                    Log.w(LOGTAG, "Exception unpacking " + pak + ": " + e.getCause());
+                    discardPak(pak);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Paks are moved into place once complete, so there is nothing to clean up.
+            Thread.currentThread().interrupt();
+        } finally {
+            mTimeBlockedMs.addAndGet(SystemClock.elapsedRealtime() - startTimeMs);
+        }
+    }
+
+    /**
+     * @return How long it took from startExtractingResources() until the core and current
+     *     locale paks were in place, in milliseconds, or -1 if that has not happened yet.
+     */
+    public long getEagerExtractionTimeMs() {
+        return mEagerExtractionTimeMs;
+    }
+
+    /**
+     * @return The total time callers have spent blocked in waitForCompletion, in milliseconds.
+     */
+    public long getTimeBlockedInWaitMs() {
+        return mTimeBlockedMs.get();
+    }
+
+    private Future<PakManifest.Entry> extractDeferredPak(String pak) {
+        synchronized (mDeferredPaks) {
+            Future<PakManifest.Entry> task = mPakTasks.get(pak);
+            if (task != null) return task;
+            final PakExtractor extractor = mDeferredPaks.remove(pak);
+            if (extractor == null) return null;
+            PakTask pakTask = new PakTask(new Callable<PakManifest.Entry>() {
+                @Override
+                public PakManifest.Entry call() throws IOException {
+                    PakManifest.Entry entry = extractor.call();
+                    recordExtractedPak(entry);
+                    writeManifest();
+                    return entry;
+                }
+            }, PRIORITY_ON_DEMAND);
+            mPakTasks.put(pak, pakTask);
+            getExecutor().execute(pakTask);
+            return pakTask;
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        synchronized (mExecutorLock) {
+            if (mExecutor == null) {
+                mExecutor = new ThreadPoolExecutor(EXTRACTION_THREAD_COUNT,
+                        EXTRACTION_THREAD_COUNT, EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new PriorityBlockingQueue<Runnable>());
+                mExecutor.allowCoreThreadTimeOut(true);
+            }
+            return mExecutor;
+        }
+    }
+
+    private boolean manifestContains(String pak) {
+        synchronized (mManifestLock) {
+            return mManifest.isIntact(mOutputDir, pak);
+        }
+    }
+
+    private boolean manifestContainsAll(String[] paks) {
+        synchronized (mManifestLock) {
+            return mManifest.areAllIntact(mOutputDir, paks);
+        }
+    }
+
+    private void recordExtractedPak(PakManifest.Entry entry) {
+        synchronized (mManifestLock) {
+            if (!mManifestDiscarded) mManifest.put(entry);
         }
     }
 
+    // Forgets a single pak that failed to extract.
+    private void discardPak(String pak) {
+        synchronized (mManifestLock) {
+            mManifest.remove(pak);
+        }
+        File file = new File(mOutputDir, pak);
+        if (file.exists() && !file.delete()) {
+            Log.w(LOGTAG, "Unable to remove resource " + pak);
+        }
+        new File(mOutputDir, pak + ".tmp").delete();
+    }
+
+    private void discardManifest() {
+        synchronized (mManifestLock) {
+            mManifest = new PakManifest();
+            mManifestDiscarded = true;
+        }
+    }
+
+    private void writeManifest() {
+        synchronized (mManifestLock) {
+            if (mManifestDiscarded) return;
+            try {
+                mManifest.write(new File(mOutputDir, PakManifest.FILENAME));
+            } catch (IOException e) {
+                // Worst case the paks are extracted again on the next start up.
+                Log.w(LOGTAG, "Failed to write resource pak manifest!");
+            }
+        }
+    }
+
+    private void recordEagerExtractionDone() {
+        mEagerExtractionTimeMs = SystemClock.elapsedRealtime() - mExtractionStartTimeMs;
+        Log.i(LOGTAG, "Core resource paks ready after " + mEagerExtractionTimeMs + "ms");
+    }
+
+    /**
+     * @return The mandatory paks that have to be extracted before startup can continue.
+     */
+    private static String[] getEagerMandatoryPaks(String currentLanguage) {
+        List<String> paks = new ArrayList<String>();
+        for (String pak : sMandatoryPaks) {
+            if (!isDeferredPak(pak, currentLanguage)) paks.add(pak);
+        }
+        return paks.toArray(new String[paks.size()]);
+    }
+
+    // Registers the mandatory paks that are deferred and not yet extracted; used when the
+    // asset list does not need to be walked.
+    private void deferRemainingMandatoryPaks(String currentLanguage) {
+        if (!sLazyExtraction) return;
+        AssetManager manager = mContext.getResources().getAssets();
+        for (String pak : sMandatoryPaks) {
+            if (isDeferredPak(pak, currentLanguage) && !manifestContains(pak)) {
+                mDeferredPaks.put(pak, new PakExtractor(manager, pak, mOutputDir));
+            }
+        }
+    }
+
+    private static boolean isLocalePak(String pak) {
+        return LOCALE_PAK_PATTERN.matcher(pak).matches();
+    }
+
+    private static boolean isDeferredPak(String pak, String currentLanguage) {
+        if (!sLazyExtraction) return false;
+        Matcher matcher = LOCALE_PAK_PATTERN.matcher(pak);
+        return matcher.matches() && !matcher.group(1).equals(currentLanguage);
+    }
+
     /**
      * This will extract the application pak resources in an
      * AsyncTask. Call waitForCompletion() at the point resources
@@ -299,6 +658,7 @@ public class ResourceExtractor {
             return;
         }
 
+        mExtractionStartTimeMs = SystemClock.elapsedRealtime();
         mExtractTask = new ExtractTask();
         mExtractTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
@@ -308,7 +668,11 @@ public class ResourceExtractor {
     }
 
     public static void deleteFiles(Context context) {
-        File dir = getOutputDirFromContext(context);
+        deletePakFiles(getOutputDirFromContext(context));
+        if (sInstance != null) sInstance.discardManifest();
+    }
+
+    private static void deletePakFiles(File dir) {
         if (dir.exists()) {
             File[] files = dir.listFiles();
             for (File file : files) {
@@ -32,6 +32,12 @@ public class TouchEventSynthesizer {
         mContentViewCore = contentViewCore;
         mPointerProperties = new PointerProperties[MAX_NUM_POINTERS];
         mPointerCoords = new PointerCoords[MAX_NUM_POINTERS];
+        // Pre-allocate the pointer state so that injecting a gesture does not allocate
+        // on every synthesized move.
+        for (int i = 0; i < MAX_NUM_POINTERS; ++i) {
+            mPointerProperties[i] = new PointerProperties();
+            mPointerCoords[i] = new PointerCoords();
+        }
     }
 
     @CalledByNative
@@ -41,15 +47,15 @@ public class TouchEventSynthesizer {
         // Convert coordinates from density independent pixels to density dependent pixels.
         float scaleFactor = mContentViewCore.getRenderCoordinates().getDeviceScaleFactor();
 
-        PointerCoords coords = new PointerCoords();
+        PointerCoords coords = mPointerCoords[index];
+        coords.clear();
         coords.x = scaleFactor * x;
         coords.y = scaleFactor * y;
         coords.pressure = 1.0f;
-        mPointerCoords[index] = coords;
 
-        PointerProperties properties = new PointerProperties();
+        PointerProperties properties = mPointerProperties[index];
+        properties.clear();
         properties.id = id;
-        mPointerProperties[index] = properties;
     }
 
     @CalledByNative
@@ -0,0 +1,232 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+import android.content.Context;
+import android.view.MotionEvent;
+import android.view.MotionEvent.PointerCoords;
+
+import org.chromium.base.TraceEvent;
+
+/**
+ * Merges ACTION_MOVE events that arrive within one vsync interval into a single batched
+ * MotionEvent, so that the gesture pipeline and the renderer see at most one move per frame.
+ * Historical samples of the merged events are preserved through {@link MotionEvent#addBatch}.
+ * All methods must be called on the UI thread.
+ */
+class TouchMoveCoalescer implements VSyncMonitor.Listener {
+    /** Every event is dispatched as soon as it arrives. */
+    static final int POLICY_OFF = 0;
+    /** All moves are held until the next vsync. */
+    static final int POLICY_PER_VSYNC = 1;
+    /** Moves are only held while they arrive faster than the display refresh rate. */
+    static final int POLICY_ADAPTIVE = 2;
+
+    private static final int INITIAL_POINTER_CAPACITY = 16;
+
+    /**
+     * Receives the coalesced events.
+     */
+    interface Delegate {
+        /**
+         * Dispatches a (possibly batched) event. The event is recycled after this returns.
+         */
+        void dispatchCoalescedTouchEvent(MotionEvent event);
+    }
+
+    private final Delegate mDelegate;
+    private final VSyncMonitor mVSyncMonitor;
+    private final long mVSyncPeriodMs;
+    private int mPolicy;
+
+    // The move event waiting for the next vsync, owned by this class.
+    private MotionEvent mPendingMove;
+    private int mPendingCoalescedCount;
+    private long mLastMoveTimeMs;
+    private PointerCoords[] mPointerCoords = new PointerCoords[0];
+
+    private int mFramesDispatched;
+    private long mTotalCoalescedCount;
+    private int mLastFrameCoalescedCount;
+    private int mMaxFrameCoalescedCount;
+
+    TouchMoveCoalescer(Context context, Delegate delegate, int policy) {
+        mDelegate = delegate;
+        mVSyncMonitor = new VSyncMonitor(context, this);
+        mVSyncPeriodMs = Math.max(1, mVSyncMonitor.getVSyncPeriodInMicroseconds() / 1000);
+        mPolicy = policy;
+        ensurePointerCapacity(INITIAL_POINTER_CAPACITY);
+    }
+
+    void setPolicy(int policy) {
+        if (policy == mPolicy) return;
+        flush();
+        mPolicy = policy;
+    }
+
+    int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Offers an incoming event to the coalescer. Any event that is not absorbed first flushes
+     * the pending move, so the relative ordering of events is always preserved.
+     * @return Whether the event was absorbed and must not be dispatched by the caller.
+     */
+    boolean offer(MotionEvent event) {
+        if (event.getActionMasked() != MotionEvent.ACTION_MOVE || !shouldCoalesce(event)) {
+            flush();
+            if (event.getActionMasked() == MotionEvent.ACTION_MOVE) {
+                mLastMoveTimeMs = event.getEventTime();
+            }
+            return false;
+        }
+        mLastMoveTimeMs = event.getEventTime();
+
+        if (mPendingMove != null && !isCompatible(mPendingMove, event)) flush();
+
+        if (mPendingMove == null) {
+            mPendingMove = MotionEvent.obtain(event);
+            mPendingCoalescedCount = 1;
+            mVSyncMonitor.requestUpdate();
+        } else {
+            appendToPendingMove(event);
+            mPendingCoalescedCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Synchronously dispatches the pending move, if any.
+     */
+    void flush() {
+        if (mPendingMove == null) return;
+        MotionEvent event = mPendingMove;
+        int coalescedCount = mPendingCoalescedCount;
+        mPendingMove = null;
+        mPendingCoalescedCount = 0;
+        recordFrame(coalescedCount);
+        try {
+            mDelegate.dispatchCoalescedTouchEvent(event);
+        } finally {
+            event.recycle();
+        }
+    }
+
+    /**
+     * Drops the pending move without dispatching it.
+     */
+    void cancel() {
+        if (mPendingMove == null) return;
+        mPendingMove.recycle();
+        mPendingMove = null;
+        mPendingCoalescedCount = 0;
+        mVSyncMonitor.stop();
+    }
+
+    /**
+     * Drops the pending move and stops listening for vsync.
+     */
+    void destroy() {
+        cancel();
+        mVSyncMonitor.unregisterListener();
+    }
+
+    @Override
+    public void onVSync(VSyncMonitor monitor, long vsyncTimeMicros) {
+        if (mPendingMove == null) {
+            monitor.stop();
+            return;
+        }
+        TraceEvent.begin("TouchMoveCoalescer.onVSync");
+        try {
+            flush();
+        } finally {
+            TraceEvent.end("TouchMoveCoalescer.onVSync");
+        }
+    }
+
+    /** @return The number of coalesced dispatches made so far. */
+    int getFramesDispatched() {
+        return mFramesDispatched;
+    }
+
+    /** @return The number of move events merged into coalesced dispatches so far. */
+    long getTotalCoalescedCount() {
+        return mTotalCoalescedCount;
+    }
+
+    /** @return The number of move events merged into the last coalesced dispatch. */
+    int getLastFrameCoalescedCount() {
+        return mLastFrameCoalescedCount;
+    }
+
+    /** @return The largest number of move events merged into a single dispatch. */
+    int getMaxFrameCoalescedCount() {
+        return mMaxFrameCoalescedCount;
+    }
+
+    private boolean shouldCoalesce(MotionEvent event) {
+        switch (mPolicy) {
+            case POLICY_PER_VSYNC:
+                return true;
+            case POLICY_ADAPTIVE:
+                // Only hold moves back while the input rate exceeds the refresh rate; a slow
+                // stream of moves gains nothing from waiting for the next vsync.
+                return mPendingMove != null
+                        || event.getEventTime() - mLastMoveTimeMs < mVSyncPeriodMs;
+            default:
+                return false;
+        }
+    }
+
+    private void recordFrame(int coalescedCount) {
+        mFramesDispatched++;
+        mTotalCoalescedCount += coalescedCount;
+        mLastFrameCoalescedCount = coalescedCount;
+        mMaxFrameCoalescedCount = Math.max(mMaxFrameCoalescedCount, coalescedCount);
+        if (TraceEvent.enabled()) {
+            TraceEvent.instant("TouchMoveCoalescer.coalesced", String.valueOf(coalescedCount));
+        }
+    }
+
+    private static boolean isCompatible(MotionEvent pending, MotionEvent event) {
+        if (pending.getDownTime() != event.getDownTime()) return false;
+        if (pending.getSource() != event.getSource()) return false;
+        int pointerCount = pending.getPointerCount();
+        if (pointerCount != event.getPointerCount()) return false;
+        for (int i = 0; i < pointerCount; ++i) {
+            if (pending.getPointerId(i) != event.getPointerId(i)) return false;
+        }
+        return true;
+    }
+
+    private void appendToPendingMove(MotionEvent event) {
+        final int pointerCount = event.getPointerCount();
+        ensurePointerCapacity(pointerCount);
+        final int historySize = event.getHistorySize();
+        for (int h = 0; h < historySize; ++h) {
+            for (int p = 0; p < pointerCount; ++p) {
+                event.getHistoricalPointerCoords(p, h, mPointerCoords[p]);
+            }
+            mPendingMove.addBatch(event.getHistoricalEventTime(h), mPointerCoords,
+                    event.getMetaState());
+        }
+        for (int p = 0; p < pointerCount; ++p) {
+            event.getPointerCoords(p, mPointerCoords[p]);
+        }
+        mPendingMove.addBatch(event.getEventTime(), mPointerCoords, event.getMetaState());
+    }
+
+    private void ensurePointerCapacity(int pointerCount) {
+        if (mPointerCoords.length >= pointerCount) return;
+        PointerCoords[] coords = new PointerCoords[pointerCount];
+        System.arraycopy(mPointerCoords, 0, coords, 0, mPointerCoords.length);
+        for (int i = mPointerCoords.length; i < pointerCount; ++i) {
+            coords[i] = new PointerCoords();
+        }
+        mPointerCoords = coords;
+    }
+}
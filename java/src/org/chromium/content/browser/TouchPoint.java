@@ -76,50 +76,85 @@ class TouchPoint {
     // Converts a MotionEvent into an array of touch points.
     // Returns the WebTouchEvent::Type for the MotionEvent and -1 for failure.
     public static int createTouchPoints(MotionEvent event, TouchPoint[] pts) {
-        int type;
-        int defaultState;
+        int type = getTouchEventType(event);
+        if (type == CONVERSION_ERROR) return CONVERSION_ERROR;
 
+        int defaultState = getDefaultTouchPointState(event);
+        for (int i = 0; i < pts.length; ++i) {
+            pts[i] = new TouchPoint(getTouchPointState(event, defaultState, i),
+                                    event.getPointerId(i),
+                                    event.getX(i), event.getY(i),
+                                    event.getSize(i), event.getPressure(i));
+        }
+
+        return type;
+    }
+
+    // Converts a MotionEvent into the reusable |batch| without allocating.
+    // Returns the WebTouchEvent::Type for the MotionEvent and -1 for failure.
+    static int createTouchPoints(MotionEvent event, TouchPointBatch batch) {
+        int type = getTouchEventType(event);
+        if (type == CONVERSION_ERROR) {
+            batch.clear();
+            return CONVERSION_ERROR;
+        }
+
+        int defaultState = getDefaultTouchPointState(event);
+        int pointerCount = event.getPointerCount();
+        batch.reset(type, pointerCount, event.getDownTime(), event.getEventTime(),
+                event.getSource());
+        for (int i = 0; i < pointerCount; ++i) {
+            batch.set(i, getTouchPointState(event, defaultState, i),
+                      event.getPointerId(i),
+                      event.getX(i), event.getY(i),
+                      event.getSize(i), event.getPressure(i));
+        }
+
+        return type;
+    }
+
+    private static int getTouchEventType(MotionEvent event) {
         switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
-                type = TOUCH_EVENT_TYPE_START;
-                defaultState = TOUCH_POINT_STATE_PRESSED;
-                break;
+                return TOUCH_EVENT_TYPE_START;
             case MotionEvent.ACTION_MOVE:
-                type = TOUCH_EVENT_TYPE_MOVE;
-                defaultState = TOUCH_POINT_STATE_MOVED;
-                break;
+                return TOUCH_EVENT_TYPE_MOVE;
             case MotionEvent.ACTION_UP:
-                type = TOUCH_EVENT_TYPE_END;
-                defaultState = TOUCH_POINT_STATE_RELEASED;
-                break;
+                return TOUCH_EVENT_TYPE_END;
             case MotionEvent.ACTION_CANCEL:
-                type = TOUCH_EVENT_TYPE_CANCEL;
-                defaultState = TOUCH_POINT_STATE_CANCELLED;
-                break;
+                return TOUCH_EVENT_TYPE_CANCEL;
             case MotionEvent.ACTION_POINTER_DOWN:  // fall through.
             case MotionEvent.ACTION_POINTER_UP:
-                type = TOUCH_EVENT_TYPE_MOVE;
-                defaultState = TOUCH_POINT_STATE_STATIONARY;
-                break;
+                return TOUCH_EVENT_TYPE_MOVE;
             default:
                 Log.e("Chromium", "Unknown motion event action: " + event.getActionMasked());
                 return CONVERSION_ERROR;
         }
+    }
 
-        for (int i = 0; i < pts.length; ++i) {
-            int state = defaultState;
-            if (defaultState == TOUCH_POINT_STATE_STATIONARY && event.getActionIndex() == i) {
-                // An additional pointer has started or ended. Map this pointer state as
-                // required, and all other pointers as "stationary".
-                state = event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN ?
-                    TOUCH_POINT_STATE_PRESSED : TOUCH_POINT_STATE_RELEASED;
-            }
-            pts[i] = new TouchPoint(state, event.getPointerId(i),
-                                    event.getX(i), event.getY(i),
-                                    event.getSize(i), event.getPressure(i));
+    private static int getDefaultTouchPointState(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                return TOUCH_POINT_STATE_PRESSED;
+            case MotionEvent.ACTION_MOVE:
+                return TOUCH_POINT_STATE_MOVED;
+            case MotionEvent.ACTION_UP:
+                return TOUCH_POINT_STATE_RELEASED;
+            case MotionEvent.ACTION_CANCEL:
+                return TOUCH_POINT_STATE_CANCELLED;
+            default:
+                return TOUCH_POINT_STATE_STATIONARY;
         }
+    }
 
-        return type;
+    private static int getTouchPointState(MotionEvent event, int defaultState, int index) {
+        if (defaultState == TOUCH_POINT_STATE_STATIONARY && event.getActionIndex() == index) {
+            // An additional pointer has started or ended. Map this pointer state as
+            // required, and all other pointers as "stationary".
+            return event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN ?
+                TOUCH_POINT_STATE_PRESSED : TOUCH_POINT_STATE_RELEASED;
+        }
+        return defaultState;
     }
 
     // This method is called by native to initialize all the constants from
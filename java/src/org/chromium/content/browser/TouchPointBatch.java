@@ -0,0 +1,112 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+/**
+ * A reusable, struct-of-arrays container for the touch points of a single MotionEvent.
+ *
+ * Unlike {@link TouchPoint#createTouchPoints(android.view.MotionEvent, TouchPoint[])}, filling
+ * a batch does not allocate once its arrays have grown to the largest pointer count seen, so a
+ * single instance can be kept around and refilled for every event of a touch sequence.
+ * {@link ContentViewGestureHandler} keeps the down event of the current touch sequence in one,
+ * instead of a copy of the MotionEvent.
+ * This class is not thread-safe and is meant to be owned by the UI thread.
+ */
+class TouchPointBatch {
+    // Matches TouchEventSynthesizer and the maximum number of pointers reported by the
+    // framework on the devices we care about. Larger events grow the arrays once.
+    static final int DEFAULT_CAPACITY = 16;
+
+    private int mType = TouchPoint.CONVERSION_ERROR;
+    private int mCount;
+    private long mDownTimeMs;
+    private long mEventTimeMs;
+    private int mSource;
+    private int[] mStates;
+    private int[] mIds;
+    private float[] mX;
+    private float[] mY;
+    private float[] mSizes;
+    private float[] mPressures;
+
+    TouchPointBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TouchPointBatch(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mStates = new int[capacity];
+        mIds = new int[capacity];
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mSizes = new float[capacity];
+        mPressures = new float[capacity];
+    }
+
+    /**
+     * Prepares the batch to hold |count| points of an event of the given WebTouchEvent::Type.
+     */
+    void reset(int type, int count, long downTimeMs, long eventTimeMs, int source) {
+        if (count > mStates.length) allocate(count);
+        mType = type;
+        mCount = count;
+        mDownTimeMs = downTimeMs;
+        mEventTimeMs = eventTimeMs;
+        mSource = source;
+    }
+
+    /**
+     * Empties the batch without releasing its storage.
+     */
+    void clear() {
+        mType = TouchPoint.CONVERSION_ERROR;
+        mCount = 0;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    void set(int index, int state, int id, float x, float y, float size, float pressure) {
+        assert index >= 0 && index < mCount;
+        mStates[index] = state;
+        mIds[index] = id;
+        mX[index] = x;
+        mY[index] = y;
+        mSizes[index] = size;
+        mPressures[index] = pressure;
+    }
+
+    /**
+     * @return The WebTouchEvent::Type of the last converted event, or
+     *         {@link TouchPoint#CONVERSION_ERROR} if the batch is empty.
+     */
+    int getType() { return mType; }
+
+    int getCount() { return mCount; }
+
+    long getDownTime() { return mDownTimeMs; }
+
+    long getEventTime() { return mEventTimeMs; }
+
+    int getSource() { return mSource; }
+
+    int getCapacity() { return mStates.length; }
+
+    int getState(int index) { return mStates[index]; }
+
+    int getId(int index) { return mIds[index]; }
+
+    float getX(int index) { return mX[index]; }
+
+    float getY(int index) { return mY[index]; }
+
+    float getSize(int index) { return mSizes[index]; }
+
+    float getPressure(int index) { return mPressures[index]; }
+}
@@ -4,9 +4,11 @@
 
 package org.chromium.content.common;
 
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.chromium.base.ThreadUtils;
@@ -14,12 +16,15 @@ import org.chromium.base.TraceEvent;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles running cleanup tasks when an object becomes eligible for GC. Cleanup tasks
- * are always executed on the main thread. In general, classes should not have
+ * are executed on the main thread, unless they were registered as not needing it, in which
+ * case they run on a background executor. In general, classes should not have
  * finalizers and likewise should not use this class for the same reasons. The
  * exception is where public APIs exist that require native side resources to be
  * cleaned up in response to java side GC of API objects. (Private/internal
@@ -35,26 +40,46 @@ public class CleanupReference extends WeakReference<Object> {
 
     private static final boolean DEBUG = false;  // Always check in as false!
 
+    // Maximum time spent running cleanup tasks in one UI thread message, so that a burst of
+    // collected objects doesn't delay frames. Remaining tasks run in the following messages.
+    private static final long CLEANUP_BUDGET_MS = 8;
+
     // The VM will enqueue CleanupReference instance onto sGcQueue when it becomes eligible for
     // garbage collection (i.e. when all references to the underlying object are nullified).
-    // |sReaperThread| processes this queue by forwarding the references on to the UI thread
-    // (via REMOVE_REF message) to perform cleanup.
+    // |sReaperThread| processes this queue by moving every collected reference to
+    // |sPendingRefs|, which the UI thread drains in batches (via DRAIN_REFS message), or by
+    // handing the reference to the background executor.
     private static ReferenceQueue<Object> sGcQueue = new ReferenceQueue<Object>();
     private static Object sCleanupMonitor = new Object();
 
+    // Collected references waiting for their cleanup task to run on the UI thread, and whether a
+    // DRAIN_REFS message is outstanding. Guarded by sCleanupMonitor.
+    private static final ArrayDeque<CleanupReference> sPendingRefs =
+            new ArrayDeque<CleanupReference>();
+    private static boolean sDrainScheduled = false;
+
+    // Cleanup statistics, guarded by sCleanupMonitor.
+    private static int sPendingCount = 0;
+    private static long sCompletedCount = 0;
+    private static long sTotalLatencyMs = 0;
+    private static long sMaxLatencyMs = 0;
+
     private static final Thread sReaperThread = new Thread(TAG) {
         @Override
         public void run() {
             while (true) {
                 try {
                     CleanupReference ref = (CleanupReference) sGcQueue.remove();
-                    if (DEBUG) Log.d(TAG, "removed one ref from GC queue");
+                    int count = 0;
                     synchronized (sCleanupMonitor) {
-                        Message.obtain(LazyHolder.sHandler, REMOVE_REF, ref).sendToTarget();
-                        // Give the UI thread chance to run cleanup before looping around and
-                        // taking the next item from the queue, to avoid Message bombing it.
-                        sCleanupMonitor.wait(500);
+                        // Take everything collected so far, so that objects dying together are
+                        // cleaned up in one batch.
+                        do {
+                            enqueueCollectedLocked(ref);
+                            count++;
+                        } while ((ref = (CleanupReference) sGcQueue.poll()) != null);
                     }
+                    if (DEBUG) Log.d(TAG, "removed " + count + " refs from GC queue");
                 } catch (Exception e) {
                     Log.e(TAG, "Queue remove exception:", e);
                 }
@@ -69,14 +94,14 @@ public class CleanupReference extends WeakReference<Object> {
 
     // Message's sent in the |what| field to |sHandler|.
 
-    // Add a new reference to sRefs. |msg.obj| is the CleanupReference to add.
-    private static final int ADD_REF = 1;
-    // Remove reference from sRefs. |msg.obj| is the CleanupReference to remove.
-    private static final int REMOVE_REF = 2;
+    // Run cleanup of |msg.obj|, a CleanupReference, right away.
+    private static final int REMOVE_REF = 1;
+    // Run the cleanup tasks in sPendingRefs, within CLEANUP_BUDGET_MS.
+    private static final int DRAIN_REFS = 2;
 
     /**
-     * This {@link Handler} polls {@link #sRefs}, looking for cleanup tasks that
-     * are ready to run.
+     * This {@link Handler} runs the cleanup tasks of the collected references
+     * on the UI thread.
      * This is lazily initialized as ThreadUtils.getUiThreadLooper() may not be
      * set yet early in startup.
      */
@@ -85,29 +110,17 @@ public class CleanupReference extends WeakReference<Object> {
             @Override
             public void handleMessage(Message msg) {
                 TraceEvent.begin();
-                CleanupReference ref = (CleanupReference) msg.obj;
                 switch (msg.what) {
-                    case ADD_REF:
-                        sRefs.add(ref);
-                        break;
                     case REMOVE_REF:
-                        ref.runCleanupTaskInternal();
+                        ((CleanupReference) msg.obj).runCleanupTaskInternal();
+                        break;
+                    case DRAIN_REFS:
+                        drainPendingRefs();
                         break;
                     default:
                         Log.e(TAG, "Bad message=" + msg.what);
                         break;
                 }
-
-                if (DEBUG) Log.d(TAG, "will try and cleanup; max = " + sRefs.size());
-
-                synchronized (sCleanupMonitor) {
-                    // Always run the cleanup loop here even when adding or removing refs, to avoid
-                    // falling behind on rapid garbage allocation inner loops.
-                    while ((ref = (CleanupReference) sGcQueue.poll()) != null) {
-                        ref.runCleanupTaskInternal();
-                    }
-                    sCleanupMonitor.notifyAll();
-                }
                 TraceEvent.end();
             }
         };
@@ -115,23 +128,40 @@ public class CleanupReference extends WeakReference<Object> {
 
     /**
      * Keep a strong reference to {@link CleanupReference} so that it will
-     * actually get enqueued.
-     * Only accessed on the UI thread.
+     * actually get enqueued. Removing a reference from the set claims its cleanup task,
+     * so that the task runs only once. Can be accessed on any thread.
      */
-    private static Set<CleanupReference> sRefs = new HashSet<CleanupReference>();
+    private static Set<CleanupReference> sRefs =
+            Collections.newSetFromMap(new ConcurrentHashMap<CleanupReference, Boolean>());
 
     private Runnable mCleanupTask;
+    private final boolean mNeedsUiThread;
+
+    // The time the reference was taken from sGcQueue, or 0 if it hasn't been collected.
+    private volatile long mCollectedTimeMs;
 
     /**
      * @param obj the object whose loss of reachability should trigger the
      *            cleanup task.
-     * @param cleanupTask the task to run once obj loses reachability.
+     * @param cleanupTask the task to run on the UI thread once obj loses reachability.
      */
     public CleanupReference(Object obj, Runnable cleanupTask) {
+        this(obj, cleanupTask, true);
+    }
+
+    /**
+     * @param obj the object whose loss of reachability should trigger the
+     *            cleanup task.
+     * @param cleanupTask the task to run once obj loses reachability.
+     * @param needsUiThread false if the task may run on a background thread after obj is
+     *            collected. {@link #cleanupNow()} still runs it on the UI thread.
+     */
+    public CleanupReference(Object obj, Runnable cleanupTask, boolean needsUiThread) {
         super(obj, sGcQueue);
         if (DEBUG) Log.d(TAG, "+++ CREATED ONE REF");
         mCleanupTask = cleanupTask;
-        handleOnUiThread(ADD_REF);
+        mNeedsUiThread = needsUiThread;
+        sRefs.add(this);
     }
 
     /**
@@ -142,6 +172,84 @@ public class CleanupReference extends WeakReference<Object> {
         handleOnUiThread(REMOVE_REF);
     }
 
+    /**
+     * @return The number of collected objects whose cleanup task has not run yet.
+     */
+    public static int getPendingCleanupCount() {
+        synchronized (sCleanupMonitor) {
+            return sPendingCount;
+        }
+    }
+
+    /**
+     * @return The average time between an object being taken from the GC queue and its cleanup
+     *         task completing, or 0 if no collected object was cleaned up yet.
+     */
+    public static long getAverageCleanupLatencyMs() {
+        synchronized (sCleanupMonitor) {
+            return sCompletedCount == 0 ? 0 : sTotalLatencyMs / sCompletedCount;
+        }
+    }
+
+    /**
+     * @return The longest time between an object being taken from the GC queue and its cleanup
+     *         task completing.
+     */
+    public static long getMaxCleanupLatencyMs() {
+        synchronized (sCleanupMonitor) {
+            return sMaxLatencyMs;
+        }
+    }
+
+    private static void enqueueCollectedLocked(final CleanupReference ref) {
+        ref.mCollectedTimeMs = SystemClock.uptimeMillis();
+        sPendingCount++;
+        if (!ref.mNeedsUiThread) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ref.runCleanupTaskInternal();
+                }
+            });
+            return;
+        }
+        sPendingRefs.add(ref);
+        if (!sDrainScheduled) {
+            sDrainScheduled = true;
+            LazyHolder.sHandler.sendEmptyMessage(DRAIN_REFS);
+        }
+    }
+
+    private static void drainPendingRefs() {
+        long deadline = SystemClock.uptimeMillis() + CLEANUP_BUDGET_MS;
+        synchronized (sCleanupMonitor) {
+            // Pick up references the reaper thread hasn't got to yet, to avoid falling behind on
+            // rapid garbage allocation inner loops.
+            CleanupReference ref;
+            while ((ref = (CleanupReference) sGcQueue.poll()) != null) {
+                enqueueCollectedLocked(ref);
+            }
+        }
+        if (DEBUG) Log.d(TAG, "will try and cleanup; max = " + sRefs.size());
+
+        while (true) {
+            CleanupReference ref;
+            synchronized (sCleanupMonitor) {
+                ref = sPendingRefs.poll();
+                if (ref == null) {
+                    sDrainScheduled = false;
+                    return;
+                }
+            }
+            ref.runCleanupTaskInternal();
+            if (SystemClock.uptimeMillis() >= deadline) {
+                // Yield to other UI thread work; sDrainScheduled stays set.
+                LazyHolder.sHandler.sendEmptyMessage(DRAIN_REFS);
+                return;
+            }
+        }
+    }
+
     private void handleOnUiThread(int what) {
         Message msg = Message.obtain(LazyHolder.sHandler, what, this);
         if (Looper.myLooper() == msg.getTarget().getLooper()) {
@@ -154,12 +262,27 @@ public class CleanupReference extends WeakReference<Object> {
 
     private void runCleanupTaskInternal() {
         if (DEBUG) Log.d(TAG, "runCleanupTaskInternal");
-        sRefs.remove(this);
-        if (mCleanupTask != null) {
-            if (DEBUG) Log.i(TAG, "--- CLEANING ONE REF");
-            mCleanupTask.run();
+        // Only the thread that removes the reference from sRefs runs the task.
+        if (sRefs.remove(this)) {
+            Runnable cleanupTask = mCleanupTask;
             mCleanupTask = null;
+            if (cleanupTask != null) {
+                if (DEBUG) Log.i(TAG, "--- CLEANING ONE REF");
+                cleanupTask.run();
+            }
         }
         clear();
+
+        long collectedTimeMs = mCollectedTimeMs;
+        if (collectedTimeMs != 0) {
+            mCollectedTimeMs = 0;
+            long latencyMs = SystemClock.uptimeMillis() - collectedTimeMs;
+            synchronized (sCleanupMonitor) {
+                sPendingCount--;
+                sCompletedCount++;
+                sTotalLatencyMs += latencyMs;
+                sMaxLatencyMs = Math.max(sMaxLatencyMs, latencyMs);
+            }
+        }
     }
 }
@@ -0,0 +1,338 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.media;
+
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds an {@link AudioTrack} from a dedicated audio thread through a ring of PCM data. Decoded
+ * audio is copied into the ring by {@link #write}, and the audio thread hands it to the track
+ * straight from the ring, only ever writing as much as the track has room for. Compared with
+ * writing to the track directly, this costs one copy into the ring.
+ *
+ * The native audio clock assumes that audio is playing as soon as it has been written, just
+ * like after a blocking AudioTrack.write(). {@link #write} therefore returns only once no more
+ * audio is ahead of the playback position than the track's own buffer holds, so the ring adds
+ * no output latency over writing to the track directly. Underruns, i.e. the track running out
+ * of data while playing, are counted from the playback head position.
+ */
+class AudioOutputRing {
+    private static final String TAG = "AudioOutputRing";
+
+    // How long to wait for the track to play out some data when it is full, in milliseconds.
+    private static final long SINK_FULL_WAIT_MS = 5;
+
+    /**
+     * Where the ring's audio is played. Only {@link #write} is called from outside the ring's
+     * lock, and never with more data than the sink has room for.
+     */
+    interface Sink {
+        int write(byte[] data, int offset, int size);
+        void play();
+        void pause();
+        void flush();
+        void stop();
+        void release();
+        boolean isPlaying();
+        void setVolume(float volume);
+
+        /**
+         * @return The number of frames played since the sink was created or last flushed.
+         */
+        long getPlaybackHeadPosition();
+    }
+
+    /**
+     * A Sink that plays to an AudioTrack.
+     */
+    static class AudioTrackSink implements Sink {
+        private final AudioTrack mAudioTrack;
+
+        AudioTrackSink(AudioTrack audioTrack) {
+            mAudioTrack = audioTrack;
+        }
+
+        @Override
+        public int write(byte[] data, int offset, int size) {
+            return mAudioTrack.write(data, offset, size);
+        }
+
+        @Override
+        public void play() {
+            mAudioTrack.play();
+        }
+
+        @Override
+        public void pause() {
+            mAudioTrack.pause();
+        }
+
+        @Override
+        public void flush() {
+            mAudioTrack.flush();
+        }
+
+        @Override
+        public void stop() {
+            mAudioTrack.stop();
+        }
+
+        @Override
+        public void release() {
+            mAudioTrack.release();
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+        }
+
+        @Override
+        public void setVolume(float volume) {
+            mAudioTrack.setStereoVolume(volume, volume);
+        }
+
+        @Override
+        public long getPlaybackHeadPosition() {
+            // The position is an unsigned 32-bit value.
+            return mAudioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        }
+    }
+
+    private final Sink mSink;
+    private final int mBytesPerFrame;
+    // The size of the sink's buffer, in bytes.
+    private final int mSinkBufferSize;
+
+    // Held by the audio thread while it writes to the sink, and by flush(), so that audio from
+    // before a flush is never written after it. Taken before |this|.
+    private final Object mSinkWriteLock = new Object();
+
+    // The ring. A byte array, as AudioTrack.write(byte[]) is all the API offers before L; the
+    // audio thread writes to the sink from it directly.
+    private final byte[] mRing;
+    // The most the audio thread writes to the sink at once, in bytes.
+    private final int mChunkSize;
+
+    // Total bytes ever written to and read from the ring; their difference is the amount of
+    // buffered data. The audio thread only counts bytes as read once the sink has them, so that
+    // write() doesn't overwrite them meanwhile. Guarded by |this|, like the other fields below.
+    private long mWriteCount;
+    private long mReadCount;
+    // Frames handed to the sink since it was last flushed.
+    private long mFramesQueued;
+    // Bumped by every flush(), so that the audio thread can drop a chunk read before it.
+    private long mFlushGeneration;
+    private boolean mPlaying;
+    private boolean mReleased;
+    // True when the audio thread found the ring empty while playing.
+    private boolean mStarved;
+    private int mUnderrunCount;
+
+    private final Thread mAudioThread = new Thread(TAG) {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            while (feedSink()) {
+            }
+        }
+    };
+
+    /**
+     * @param audioTrack the track to feed, which the ring takes ownership of
+     * @param minBufferSize the buffer size the track was created with, in bytes
+     * @param bytesPerFrame the size of one frame of PCM data, in bytes
+     */
+    AudioOutputRing(AudioTrack audioTrack, int minBufferSize, int bytesPerFrame) {
+        this(new AudioTrackSink(audioTrack), minBufferSize, bytesPerFrame);
+    }
+
+    AudioOutputRing(Sink sink, int minBufferSize, int bytesPerFrame) {
+        mSink = sink;
+        mBytesPerFrame = bytesPerFrame;
+        mSinkBufferSize = Math.max(bytesPerFrame, minBufferSize / bytesPerFrame * bytesPerFrame);
+        int chunkSize = Math.max(bytesPerFrame, minBufferSize / 4 / bytesPerFrame * bytesPerFrame);
+        // A whole number of frames, so that chunks read across the wrap-around hold whole frames.
+        int ringFrames = (Math.max(minBufferSize, chunkSize) + bytesPerFrame - 1) / bytesPerFrame;
+        mRing = new byte[2 * ringFrames * bytesPerFrame];
+        mChunkSize = chunkSize;
+        mAudioThread.start();
+    }
+
+    /**
+     * Copies the remaining bytes of |data| into the ring and starts playback. Blocks until no
+     * more audio is ahead of the playback position than the sink's buffer holds.
+     */
+    void write(ByteBuffer data) {
+        synchronized (this) {
+            mPlaying = true;
+            while (data.hasRemaining() && !mReleased) {
+                int free = mRing.length - (int) (mWriteCount - mReadCount);
+                if (free == 0) {
+                    waitUninterruptibly(0);
+                    continue;
+                }
+                int offset = (int) (mWriteCount % mRing.length);
+                int count = Math.min(Math.min(free, mRing.length - offset), data.remaining());
+                data.get(mRing, offset, count);
+                mWriteCount += count;
+                notifyAll();
+            }
+            // The sink doesn't signal progress, so poll it.
+            while (mPlaying && !mReleased && getUnplayedBytesLocked() > mSinkBufferSize) {
+                waitUninterruptibly(SINK_FULL_WAIT_MS);
+            }
+        }
+    }
+
+    void write(byte[] data) {
+        write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Pauses playback. Buffered data is kept and played when writing resumes.
+     */
+    synchronized void pause() {
+        mPlaying = false;
+        mStarved = false;
+        mSink.pause();
+        notifyAll();
+    }
+
+    /**
+     * Drops all buffered data, in the ring and in the sink.
+     */
+    void flush() {
+        synchronized (mSinkWriteLock) {
+            synchronized (this) {
+                mFlushGeneration++;
+                mReadCount = mWriteCount;
+                mFramesQueued = 0;
+                mStarved = false;
+                // Flushing a playing track has no effect; the audio thread resumes playback
+                // once there is new data.
+                if (mSink.isPlaying()) mSink.pause();
+                mSink.flush();
+                notifyAll();
+            }
+        }
+    }
+
+    synchronized void setVolume(float volume) {
+        mSink.setVolume(volume);
+    }
+
+    /**
+     * Stops the audio thread and releases the sink.
+     */
+    void release() {
+        synchronized (this) {
+            mReleased = true;
+            notifyAll();
+        }
+        try {
+            mAudioThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while stopping the audio thread", e);
+        }
+        try {
+            mSink.stop();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to stop the audio track", e);
+        }
+        mSink.release();
+    }
+
+    /**
+     * @return The number of times the sink ran out of data while playing.
+     */
+    synchronized int getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    /**
+     * @return The number of bytes waiting in the ring.
+     */
+    synchronized int getBufferedBytes() {
+        return (int) (mWriteCount - mReadCount);
+    }
+
+    // The bytes in the ring and in the sink that have not been played yet.
+    private int getUnplayedBytesLocked() {
+        long queuedFrames = Math.max(0, mFramesQueued - mSink.getPlaybackHeadPosition());
+        return (int) (mWriteCount - mReadCount + queuedFrames * mBytesPerFrame);
+    }
+
+    /**
+     * Moves one chunk from the ring to the sink, waiting for data, playback or room in the sink
+     * if needed. Called on the audio thread.
+     * @return false once the ring has been released
+     */
+    private boolean feedSink() {
+        int offset;
+        int count;
+        long generation;
+        synchronized (this) {
+            while (!mReleased && (!mPlaying || mWriteCount == mReadCount)) {
+                if (mPlaying) mStarved = true;
+                waitUninterruptibly(0);
+            }
+            if (mReleased) return false;
+
+            long playedFrames = mSink.getPlaybackHeadPosition();
+            if (mStarved) {
+                mStarved = false;
+                if (playedFrames >= mFramesQueued && mFramesQueued > 0) mUnderrunCount++;
+            }
+            if (!mSink.isPlaying()) mSink.play();
+
+            // Only write what the sink has room for, so that the write doesn't block while the
+            // sink lock is held.
+            long queuedFrames = Math.max(0, mFramesQueued - playedFrames);
+            long room = (mSinkBufferSize - queuedFrames * mBytesPerFrame) / mBytesPerFrame
+                    * mBytesPerFrame;
+            if (room <= 0) {
+                waitUninterruptibly(SINK_FULL_WAIT_MS);
+                return true;
+            }
+
+            offset = (int) (mReadCount % mRing.length);
+            count = (int) Math.min(mWriteCount - mReadCount, mRing.length - offset);
+            count = (int) Math.min(Math.min(count, mChunkSize), room);
+            generation = mFlushGeneration;
+        }
+
+        // Written without holding |this|, so that write() and pause() aren't held up. flush()
+        // can't drop the chunk while it is being written, as it needs mSinkWriteLock.
+        synchronized (mSinkWriteLock) {
+            synchronized (this) {
+                if (generation != mFlushGeneration) return true;
+            }
+            int written = mSink.write(mRing, offset, count);
+            if (written != count) {
+                Log.i(TAG, "Failed to send all data to audio output, expected size: " +
+                        count + ", actual size: " + written);
+            }
+            synchronized (this) {
+                mReadCount += count;
+                mFramesQueued += count / mBytesPerFrame;
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    private void waitUninterruptibly(long timeoutMs) {
+        try {
+            wait(timeoutMs);
+        } catch (InterruptedException e) {
+            // Keep waiting; the conditions are checked by the callers.
+        }
+    }
+}
@@ -12,12 +12,14 @@ import android.media.audiofx.AcousticEchoCanceler;
 import android.media.audiofx.AudioEffect;
 import android.media.audiofx.AudioEffect.Descriptor;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.chromium.base.CalledByNative;
 import org.chromium.base.JNINamespace;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 // Owned by its native counterpart declared in audio_record_input.h. Refer to
 // that class for general comments.
@@ -42,6 +44,40 @@ class AudioRecordInput {
     private AudioRecordThread mAudioRecordThread;
     private AcousticEchoCanceler mAEC;
 
+    // Bounds of the number of capture buffers. The count grows when the capture thread finds
+    // all buffers full, and shrinks again after a stable period.
+    private static final int MIN_CAPTURE_BUFFERS = 2;
+    private static final int MAX_CAPTURE_BUFFERS = 8;
+    private static final long CAPTURE_BUFFER_SHRINK_DELAY_MS = 5000;
+    // The capture thread gives up after this many read failures in a row.
+    private static final int MAX_CONSECUTIVE_READ_ERRORS = 5;
+
+    /**
+     * A buffer of captured audio, recycled between the capture and the delivery threads.
+     */
+    private static class CaptureBuffer {
+        final ByteBuffer mData;
+        int mSize;
+        long mCaptureTimeNs;
+
+        CaptureBuffer(int capacity) {
+            mData = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    // The capture ring, and its statistics. Guarded by mRingLock.
+    private final Object mRingLock = new Object();
+    private final ArrayDeque<CaptureBuffer> mFreeBuffers = new ArrayDeque<CaptureBuffer>();
+    private final ArrayDeque<CaptureBuffer> mFilledBuffers = new ArrayDeque<CaptureBuffer>();
+    private int mAllocatedBufferCount;
+    private int mTargetBufferCount = MIN_CAPTURE_BUFFERS;
+    private long mLastResizeTimeMs;
+    private boolean mCapturing;
+    private int mOverrunCount;
+    private int mUnderrunCount;
+    private long mDeliveredCount;
+    private long mTotalLatencyNs;
+
     private class AudioRecordThread extends Thread {
         // The "volatile" synchronization technique is discussed here:
         // http://stackoverflow.com/a/106787/299268
@@ -49,6 +85,14 @@ class AudioRecordInput {
         // https://www.ibm.com/developerworks/java/library/j-jtp06197/
         private volatile boolean mKeepAlive = true;
 
+        private final Thread mDeliveryThread = new Thread(TAG + "Delivery") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                deliverBuffers();
+            }
+        };
+
         @Override
         public void run() {
             Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
@@ -59,21 +103,41 @@ class AudioRecordInput {
                 return;
             }
 
+            synchronized (mRingLock) {
+                mCapturing = true;
+                mLastResizeTimeMs = SystemClock.elapsedRealtime();
+            }
+            mDeliveryThread.start();
+
+            int consecutiveErrors = 0;
             while (mKeepAlive) {
-                int bytesRead = mAudioRecord.read(mBuffer, mBuffer.capacity());
+                CaptureBuffer buffer = obtainFreeBuffer();
+                int bytesRead = mAudioRecord.read(buffer.mData, buffer.mData.capacity());
                 if (bytesRead > 0) {
-                    nativeOnData(mNativeAudioRecordInputStream, bytesRead,
-                                 mHardwareDelayBytes);
+                    consecutiveErrors = 0;
+                    buffer.mSize = bytesRead;
+                    buffer.mCaptureTimeNs = System.nanoTime();
+                    queueFilledBuffer(buffer);
                 } else {
+                    recycleBuffer(buffer);
                     Log.e(TAG, "read failed: " + bytesRead);
                     if (bytesRead == AudioRecord.ERROR_INVALID_OPERATION) {
                         // This can happen if there is already an active
                         // AudioRecord (e.g. in another tab).
                         mKeepAlive = false;
+                    } else if (++consecutiveErrors >= MAX_CONSECUTIVE_READ_ERRORS) {
+                        Log.e(TAG, "Giving up after " + consecutiveErrors + " read failures");
+                        mKeepAlive = false;
                     }
                 }
             }
 
+            synchronized (mRingLock) {
+                mCapturing = false;
+                mRingLock.notifyAll();
+            }
+            joinUninterruptibly(mDeliveryThread);
+
             try {
                 mAudioRecord.stop();
             } catch (IllegalStateException e) {
@@ -83,13 +147,156 @@ class AudioRecordInput {
 
         public void joinRecordThread() {
             mKeepAlive = false;
-            while (isAlive()) {
-                try {
-                    join();
-                } catch (InterruptedException e) {
-                    // Ignore.
+            joinUninterruptibly(this);
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * @return A buffer to capture into. If all buffers hold audio that wasn't delivered yet,
+     *         the ring grows up to MAX_CAPTURE_BUFFERS, beyond which the oldest audio is dropped.
+     */
+    private CaptureBuffer obtainFreeBuffer() {
+        synchronized (mRingLock) {
+            CaptureBuffer buffer = mFreeBuffers.poll();
+            if (buffer != null) return buffer;
+
+            if (mAllocatedBufferCount < mTargetBufferCount) {
+                mAllocatedBufferCount++;
+                return new CaptureBuffer(mBuffer.capacity());
+            }
+            // Native code fell behind by the whole ring: drop the oldest audio and make room for
+            // one more buffer next time.
+            mOverrunCount++;
+            if (mTargetBufferCount < MAX_CAPTURE_BUFFERS) mTargetBufferCount++;
+            mLastResizeTimeMs = SystemClock.elapsedRealtime();
+            if (DEBUG) Log.d(TAG, "overrun, capture buffers: " + mTargetBufferCount);
+            buffer = mFilledBuffers.poll();
+            if (buffer != null) return buffer;
+            mAllocatedBufferCount++;
+            return new CaptureBuffer(mBuffer.capacity());
+        }
+    }
+
+    private void queueFilledBuffer(CaptureBuffer buffer) {
+        synchronized (mRingLock) {
+            mFilledBuffers.add(buffer);
+            mRingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns |buffer| to the free buffers, or releases it if the ring has been stable long
+     * enough to shrink.
+     */
+    private void recycleBuffer(CaptureBuffer buffer) {
+        synchronized (mRingLock) {
+            long now = SystemClock.elapsedRealtime();
+            if (mTargetBufferCount > MIN_CAPTURE_BUFFERS
+                    && now - mLastResizeTimeMs >= CAPTURE_BUFFER_SHRINK_DELAY_MS) {
+                mTargetBufferCount--;
+                mLastResizeTimeMs = now;
+            }
+            if (mAllocatedBufferCount > mTargetBufferCount) {
+                mAllocatedBufferCount--;
+                return;
+            }
+            mFreeBuffers.add(buffer);
+        }
+    }
+
+    /**
+     * Hands the captured buffers to native code in order, on the delivery thread, until capture
+     * stops. The audio is copied into mBuffer, whose address native code has cached.
+     */
+    private void deliverBuffers() {
+        int bytesPerSecond = mSampleRate * mChannels * mBitsPerSample / 8;
+        long bufferDurationNs = 1000000000L * mBuffer.capacity() / bytesPerSecond;
+        long lastDeliveryNs = 0;
+        while (true) {
+            CaptureBuffer buffer;
+            int queuedBytes = 0;
+            synchronized (mRingLock) {
+                while (mCapturing && mFilledBuffers.isEmpty()) {
+                    try {
+                        mRingLock.wait();
+                    } catch (InterruptedException e) {
+                        // Keep waiting until capture stops.
+                    }
+                }
+                buffer = mFilledBuffers.poll();
+                if (buffer == null) return;
+                for (CaptureBuffer queued : mFilledBuffers) {
+                    queuedBytes += queued.mSize;
+                }
+            }
+
+            long nowNs = System.nanoTime();
+            buffer.mData.rewind();
+            mBuffer.clear();
+            buffer.mData.limit(buffer.mSize);
+            mBuffer.put(buffer.mData);
+            buffer.mData.clear();
+            // Audio still waiting in the ring is delayed as much as audio in the hardware.
+            nativeOnData(mNativeAudioRecordInputStream, buffer.mSize,
+                         mHardwareDelayBytes + queuedBytes);
+
+            synchronized (mRingLock) {
+                mDeliveredCount++;
+                mTotalLatencyNs += nowNs - buffer.mCaptureTimeNs;
+                if (lastDeliveryNs != 0 && nowNs - lastDeliveryNs > 2 * bufferDurationNs) {
+                    // Native code went without audio for longer than two buffers.
+                    mUnderrunCount++;
                 }
             }
+            lastDeliveryNs = nowNs;
+            recycleBuffer(buffer);
+        }
+    }
+
+    /**
+     * @return The number of times captured audio was dropped because native code fell behind.
+     */
+    int getOverrunCount() {
+        synchronized (mRingLock) {
+            return mOverrunCount;
+        }
+    }
+
+    /**
+     * @return The number of times native code went without audio for longer than two buffers.
+     */
+    int getUnderrunCount() {
+        synchronized (mRingLock) {
+            return mUnderrunCount;
+        }
+    }
+
+    /**
+     * @return The average time between a buffer being captured and being handed to native code,
+     *         in microseconds.
+     */
+    long getAverageCaptureLatencyUs() {
+        synchronized (mRingLock) {
+            return mDeliveredCount == 0 ? 0 : mTotalLatencyNs / mDeliveredCount / 1000;
+        }
+    }
+
+    /**
+     * @return The current number of capture buffers the ring may use.
+     */
+    int getCaptureBufferCount() {
+        synchronized (mRingLock) {
+            return mTargetBufferCount;
         }
     }
 
@@ -8,8 +8,6 @@ import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Build;
@@ -22,7 +20,6 @@ import org.chromium.base.JNINamespace;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -58,11 +55,15 @@ class MediaCodecBridge {
     // non-decreasing for the remaining frames.
     private static final long MAX_PRESENTATION_TIMESTAMP_SHIFT_US = 100000;
 
+    // Using 16bit PCM for output. Keep this value in sync with kBytesPerAudioOutputSample in
+    // media_codec_bridge.cc.
+    private static final int BYTES_PER_AUDIO_OUTPUT_SAMPLE = 2;
+
     private ByteBuffer[] mInputBuffers;
     private ByteBuffer[] mOutputBuffers;
 
     private MediaCodec mMediaCodec;
-    private AudioTrack mAudioTrack;
+    private AudioOutputRing mAudioOutput;
     private boolean mFlushed;
     private long mLastPresentationTimeUs;
 
@@ -144,53 +145,38 @@ class MediaCodecBridge {
         private int numBytes() { return mNumBytes; }
     }
 
+    // Built from MediaCodecIndex on first use; the codecs don't change while the process runs.
+    private static volatile CodecInfo[] sCodecsInfo;
+
     /**
      * Get a list of supported android codec mimes.
      */
     @CalledByNative
     private static CodecInfo[] getCodecsInfo() {
+        CodecInfo[] codecsInfo = sCodecsInfo;
+        if (codecsInfo != null) return codecsInfo;
+
         // Return the first (highest-priority) codec for each MIME type.
-        Map<String, CodecInfo> encoderInfoMap = new HashMap<String, CodecInfo>();
-        Map<String, CodecInfo> decoderInfoMap = new HashMap<String, CodecInfo>();
-        int count = MediaCodecList.getCodecCount();
-        for (int i = 0; i < count; ++i) {
-            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
-            int direction =
-                info.isEncoder() ? MEDIA_CODEC_ENCODER : MEDIA_CODEC_DECODER;
-            String codecString = info.getName();
-            String[] supportedTypes = info.getSupportedTypes();
-            for (int j = 0; j < supportedTypes.length; ++j) {
-                Map<String, CodecInfo> map = info.isEncoder() ? encoderInfoMap : decoderInfoMap;
-                if (!map.containsKey(supportedTypes[j])) {
-                    map.put(supportedTypes[j], new CodecInfo(
-                        supportedTypes[j], codecString, direction));
-                }
-            }
-        }
+        MediaCodecIndex index = MediaCodecIndex.get();
+        Map<String, String> encoders = index.getFirstCodecs(true);
+        Map<String, String> decoders = index.getFirstCodecs(false);
         ArrayList<CodecInfo> codecInfos = new ArrayList<CodecInfo>(
-            decoderInfoMap.size() + encoderInfoMap.size());
-        codecInfos.addAll(encoderInfoMap.values());
-        codecInfos.addAll(decoderInfoMap.values());
-        return codecInfos.toArray(new CodecInfo[codecInfos.size()]);
+            decoders.size() + encoders.size());
+        for (Map.Entry<String, String> encoder : encoders.entrySet()) {
+            codecInfos.add(new CodecInfo(encoder.getKey(), encoder.getValue(),
+                    MEDIA_CODEC_ENCODER));
+        }
+        for (Map.Entry<String, String> decoder : decoders.entrySet()) {
+            codecInfos.add(new CodecInfo(decoder.getKey(), decoder.getValue(),
+                    MEDIA_CODEC_DECODER));
+        }
+        codecsInfo = codecInfos.toArray(new CodecInfo[codecInfos.size()]);
+        sCodecsInfo = codecsInfo;
+        return codecsInfo;
     }
 
     private static String getSecureDecoderNameForMime(String mime) {
-        int count = MediaCodecList.getCodecCount();
-        for (int i = 0; i < count; ++i) {
-            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
-            if (info.isEncoder()) {
-                continue;
-            }
-
-            String[] supportedTypes = info.getSupportedTypes();
-            for (int j = 0; j < supportedTypes.length; ++j) {
-                if (supportedTypes[j].equalsIgnoreCase(mime)) {
-                    return info.getName() + ".secure";
-                }
-            }
-        }
-
-        return null;
+        return MediaCodecIndex.get().getSecureDecoderName(mime);
     }
 
     private MediaCodecBridge(MediaCodec mediaCodec) {
@@ -236,8 +222,8 @@ class MediaCodecBridge {
         mMediaCodec.stop();
         mMediaCodec.release();
         mMediaCodec = null;
-        if (mAudioTrack != null) {
-            mAudioTrack.release();
+        if (mAudioOutput != null) {
+            mAudioOutput.release();
         }
     }
 
@@ -279,8 +265,8 @@ class MediaCodecBridge {
     private int flush() {
         try {
             mFlushed = true;
-            if (mAudioTrack != null) {
-                mAudioTrack.flush();
+            if (mAudioOutput != null) {
+                mAudioOutput.flush();
             }
             mMediaCodec.flush();
         } catch (IllegalStateException e) {
@@ -293,8 +279,8 @@ class MediaCodecBridge {
     @CalledByNative
     private void stop() {
         mMediaCodec.stop();
-        if (mAudioTrack != null) {
-            mAudioTrack.pause();
+        if (mAudioOutput != null) {
+            mAudioOutput.pause();
         }
     }
 
@@ -493,6 +479,10 @@ class MediaCodecBridge {
             boolean playAudio) {
         try {
             mMediaCodec.configure(format, null, crypto, flags);
+            if (mAudioOutput != null) {
+                mAudioOutput.release();
+                mAudioOutput = null;
+            }
             if (playAudio) {
                 int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
                 int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
@@ -501,12 +491,15 @@ class MediaCodecBridge {
                 // kBytesPerAudioOutputSample in media_codec_bridge.cc.
                 int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig,
                         AudioFormat.ENCODING_PCM_16BIT);
-                mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
-                        AudioFormat.ENCODING_PCM_16BIT, minBufferSize, AudioTrack.MODE_STREAM);
-                if (mAudioTrack.getState() == AudioTrack.STATE_UNINITIALIZED) {
-                    mAudioTrack = null;
+                AudioTrack audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                        channelConfig, AudioFormat.ENCODING_PCM_16BIT, minBufferSize,
+                        AudioTrack.MODE_STREAM);
+                if (audioTrack.getState() == AudioTrack.STATE_UNINITIALIZED) {
+                    audioTrack.release();
                     return false;
                 }
+                mAudioOutput = new AudioOutputRing(audioTrack, minBufferSize,
+                        BYTES_PER_AUDIO_OUTPUT_SAMPLE * channelCount);
             }
             return true;
         } catch (IllegalStateException e) {
@@ -517,22 +510,41 @@ class MediaCodecBridge {
 
     @CalledByNative
     private void playOutputBuffer(byte[] buf) {
-        if (mAudioTrack != null) {
-            if (AudioTrack.PLAYSTATE_PLAYING != mAudioTrack.getPlayState()) {
-                mAudioTrack.play();
-            }
-            int size = mAudioTrack.write(buf, 0, buf.length);
-            if (buf.length != size) {
-                Log.i(TAG, "Failed to send all data to audio output, expected size: " +
-                        buf.length + ", actual size: " + size);
-            }
+        if (mAudioOutput != null) {
+            mAudioOutput.write(buf);
         }
     }
 
+    /**
+     * Plays |size| bytes of decoded PCM data at |offset| in the output buffer |index|, copying
+     * them straight into the audio output ring instead of through a Java array. Must be called
+     * before the output buffer is released.
+     *
+     * The native bridge is built from the Chromium tree and still calls playOutputBuffer(),
+     * which costs one copy into the ring on top of the byte[] native makes; this entry point
+     * lets it drop that byte[] once it switches over.
+     */
+    @CalledByNative
+    private void playOutputBufferAt(int index, int offset, int size) {
+        if (mAudioOutput != null) {
+            ByteBuffer buffer = mOutputBuffers[index].duplicate();
+            buffer.limit(offset + size);
+            buffer.position(offset);
+            mAudioOutput.write(buffer);
+        }
+    }
+
+    /**
+     * @return The number of times audio output ran out of data while playing.
+     */
+    int getAudioUnderrunCount() {
+        return mAudioOutput != null ? mAudioOutput.getUnderrunCount() : 0;
+    }
+
     @CalledByNative
     private void setVolume(double volume) {
-        if (mAudioTrack != null) {
-            mAudioTrack.setStereoVolume((float) volume, (float) volume);
+        if (mAudioOutput != null) {
+            mAudioOutput.setVolume((float) volume);
         }
     }
 
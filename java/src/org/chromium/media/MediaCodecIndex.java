@@ -0,0 +1,186 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.media;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A process-wide, immutable index of the codecs listed by {@link MediaCodecList}, so that
+ * lookups by mime type and direction don't walk the list and query every codec for its
+ * supported types.
+ *
+ * The index is built on first use, or ahead of it by {@link #warmUp}, which also persists it in
+ * a private preferences file. Later launches load the persisted index instead of walking the list,
+ * as long as the build fingerprint, and so the installed codecs, is unchanged.
+ */
+public class MediaCodecIndex {
+    private static final String TAG = "MediaCodecIndex";
+
+    // Kept in a preferences file of its own, out of the embedding app's default preferences.
+    private static final String PREFS_NAME = "org.chromium.media.codec_index";
+    private static final String PREF_CODECS = "codecs";
+    private static final String PREF_FINGERPRINT = "fingerprint";
+
+    private static final Object sLock = new Object();
+    private static volatile MediaCodecIndex sInstance;
+
+    /**
+     * A codec, as listed by MediaCodecList.
+     */
+    private static class Codec {
+        final String mName;
+        final boolean mIsEncoder;
+        final String[] mSupportedTypes;
+
+        Codec(String name, boolean isEncoder, String[] supportedTypes) {
+            mName = name;
+            mIsEncoder = isEncoder;
+            mSupportedTypes = supportedTypes;
+        }
+    }
+
+    // The highest-priority codec for each supported type, in MediaCodecList order, keyed by the
+    // type as reported by the codec.
+    private final Map<String, String> mFirstDecoders;
+    private final Map<String, String> mFirstEncoders;
+    // The same, keyed by the lower case type for case-insensitive lookups.
+    private final Map<String, String> mDecodersByMime;
+    private final Map<String, String> mEncodersByMime;
+
+    private MediaCodecIndex(List<Codec> codecs) {
+        Map<String, String> firstDecoders = new LinkedHashMap<String, String>();
+        Map<String, String> firstEncoders = new LinkedHashMap<String, String>();
+        Map<String, String> decodersByMime = new HashMap<String, String>();
+        Map<String, String> encodersByMime = new HashMap<String, String>();
+        for (Codec codec : codecs) {
+            Map<String, String> first = codec.mIsEncoder ? firstEncoders : firstDecoders;
+            Map<String, String> byMime = codec.mIsEncoder ? encodersByMime : decodersByMime;
+            for (String type : codec.mSupportedTypes) {
+                if (!first.containsKey(type)) first.put(type, codec.mName);
+                String mime = type.toLowerCase(Locale.US);
+                if (!byMime.containsKey(mime)) byMime.put(mime, codec.mName);
+            }
+        }
+        mFirstDecoders = Collections.unmodifiableMap(firstDecoders);
+        mFirstEncoders = Collections.unmodifiableMap(firstEncoders);
+        mDecodersByMime = Collections.unmodifiableMap(decodersByMime);
+        mEncodersByMime = Collections.unmodifiableMap(encodersByMime);
+    }
+
+    /**
+     * @return The index, building it from MediaCodecList if warmUp() hasn't run yet.
+     */
+    static MediaCodecIndex get() {
+        MediaCodecIndex index = sInstance;
+        if (index != null) return index;
+        synchronized (sLock) {
+            if (sInstance == null) sInstance = new MediaCodecIndex(listCodecs());
+            return sInstance;
+        }
+    }
+
+    /**
+     * Loads or builds the index ahead of its first use. This may be slow, so it should be called
+     * on a background thread early in startup.
+     * @param context the context whose private preferences hold the persisted index
+     */
+    public static void warmUp(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+        synchronized (sLock) {
+            if (sInstance != null) return;
+            SharedPreferences prefs =
+                    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            List<Codec> codecs = null;
+            if (Build.FINGERPRINT.equals(prefs.getString(PREF_FINGERPRINT, null))) {
+                codecs = deserialize(prefs.getString(PREF_CODECS, null));
+            }
+            if (codecs == null) {
+                codecs = listCodecs();
+                prefs.edit()
+                        .putString(PREF_CODECS, serialize(codecs))
+                        .putString(PREF_FINGERPRINT, Build.FINGERPRINT)
+                        .apply();
+            }
+            sInstance = new MediaCodecIndex(codecs);
+        }
+    }
+
+    /**
+     * @return The highest-priority decoder or encoder for each type, keyed by the type.
+     */
+    Map<String, String> getFirstCodecs(boolean isEncoder) {
+        return isEncoder ? mFirstEncoders : mFirstDecoders;
+    }
+
+    /**
+     * @return The name of the highest-priority codec for |mime| in the given direction, or null
+     *         if there is none. The mime type is matched case-insensitively.
+     */
+    String getCodecName(String mime, boolean isEncoder) {
+        Map<String, String> byMime = isEncoder ? mEncodersByMime : mDecodersByMime;
+        return byMime.get(mime.toLowerCase(Locale.US));
+    }
+
+    /**
+     * @return The name of the secure variant of the decoder for |mime|, or null if there is no
+     *         decoder for it.
+     */
+    String getSecureDecoderName(String mime) {
+        String name = getCodecName(mime, false);
+        return name != null ? name + ".secure" : null;
+    }
+
+    private static List<Codec> listCodecs() {
+        int count = MediaCodecList.getCodecCount();
+        List<Codec> codecs = new ArrayList<Codec>(count);
+        for (int i = 0; i < count; ++i) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            codecs.add(new Codec(info.getName(), info.isEncoder(), info.getSupportedTypes()));
+        }
+        return codecs;
+    }
+
+    // One line per codec: the name, "e" or "d" for the direction, and the comma separated
+    // supported types, separated by tabs.
+    private static String serialize(List<Codec> codecs) {
+        StringBuilder builder = new StringBuilder();
+        for (Codec codec : codecs) {
+            builder.append(codec.mName).append('\t')
+                    .append(codec.mIsEncoder ? 'e' : 'd').append('\t')
+                    .append(TextUtils.join(",", codec.mSupportedTypes)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static List<Codec> deserialize(String serialized) {
+        if (serialized == null) return null;
+        List<Codec> codecs = new ArrayList<Codec>();
+        for (String line : serialized.split("\n")) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 3) {
+                Log.w(TAG, "Ignoring malformed codec index: " + line);
+                return null;
+            }
+            String[] types = fields[2].isEmpty() ? new String[0] : fields[2].split(",");
+            codecs.add(new Codec(fields[0], "e".equals(fields[1]), types));
+        }
+        return codecs;
+    }
+}
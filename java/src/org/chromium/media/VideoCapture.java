@@ -21,6 +21,7 @@ import org.chromium.base.JNINamespace;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /** This class implements the listener interface for receiving copies of preview
@@ -119,12 +120,20 @@ public class VideoCapture implements PreviewCallback {
 
     private Camera mCamera;
     public ReentrantLock mPreviewBufferLock = new ReentrantLock();
+    // Signalled when a frame delivery to native code completes.
+    private final Condition mFrameDelivered = mPreviewBufferLock.newCondition();
     private Context mContext = null;
     // True when native code has started capture.
     private boolean mIsRunning = false;
+    // The thread on which onPreviewFrame() hands a frame to native code, which it does without
+    // holding mPreviewBufferLock, or null. stopCapture() waits for the delivery to complete.
+    private Thread mDeliveringThread = null;
 
     private static final int NUM_CAPTURE_BUFFERS = 3;
     private int mExpectedFrameSize = 0;
+    // Preview callback buffers, recycled through the camera and kept across allocate() calls as
+    // long as the frame size doesn't change.
+    private byte[][] mCallbackBuffers = null;
     private int mId = 0;
     // Native callback context variable.
     private long mNativeVideoCaptureDeviceAndroid = 0;
@@ -139,6 +148,68 @@ public class VideoCapture implements PreviewCallback {
     CaptureFormat mCaptureFormat = null;
     private static final String TAG = "VideoCapture";
 
+    /**
+     * Frame delivery statistics, published once per second of capture. Only accessed on the
+     * camera callback thread, except for the published values.
+     */
+    private static class FrameStats {
+        private static final long WINDOW_MS = 1000;
+
+        private long mWindowStartMs = 0;
+        private long mLastFrameMs = 0;
+        private int mDelivered = 0;
+        private int mDropped = 0;
+        private long mTotalLatencyUs = 0;
+
+        private volatile int mDeliveredLastSecond = 0;
+        private volatile int mDroppedLastSecond = 0;
+        private volatile long mAverageLatencyUsLastSecond = 0;
+
+        void reset() {
+            mWindowStartMs = 0;
+            mLastFrameMs = 0;
+            mDelivered = 0;
+            mDropped = 0;
+            mTotalLatencyUs = 0;
+        }
+
+        /**
+         * Counts the frames the camera skipped since the previous frame, judging by the gap
+         * between them and the expected frame interval.
+         */
+        void onFrameArrived(long nowMs, int frameRate) {
+            if (mWindowStartMs == 0) mWindowStartMs = nowMs;
+            if (mLastFrameMs != 0 && frameRate > 0) {
+                long intervalMs = 1000 / frameRate;
+                long gapMs = nowMs - mLastFrameMs;
+                if (intervalMs > 0 && gapMs > intervalMs + intervalMs / 2) {
+                    mDropped += (int) ((gapMs + intervalMs / 2) / intervalMs) - 1;
+                }
+            }
+            mLastFrameMs = nowMs;
+        }
+
+        void onFrameDropped() {
+            mDropped++;
+        }
+
+        void onFrameDelivered(long latencyUs, long nowMs) {
+            mDelivered++;
+            mTotalLatencyUs += latencyUs;
+            if (nowMs - mWindowStartMs < WINDOW_MS) return;
+
+            mDeliveredLastSecond = mDelivered;
+            mDroppedLastSecond = mDropped;
+            mAverageLatencyUsLastSecond = mTotalLatencyUs / mDelivered;
+            mWindowStartMs = nowMs;
+            mDelivered = 0;
+            mDropped = 0;
+            mTotalLatencyUs = 0;
+        }
+    }
+
+    private final FrameStats mFrameStats = new FrameStats();
+
     @CalledByNative
     public static VideoCapture createVideoCapture(
             Context context, int id, long nativeVideoCaptureDeviceAndroid) {
@@ -332,8 +403,13 @@ public class VideoCapture implements PreviewCallback {
                       mCaptureFormat.mHeight *
                       ImageFormat.getBitsPerPixel(
                               mCaptureFormat.mPixelFormat) / 8;
-        for (int i = 0; i < NUM_CAPTURE_BUFFERS; i++) {
-            byte[] buffer = new byte[bufSize];
+        if (mCallbackBuffers == null || bufSize != mExpectedFrameSize) {
+            mCallbackBuffers = new byte[NUM_CAPTURE_BUFFERS][];
+            for (int i = 0; i < NUM_CAPTURE_BUFFERS; i++) {
+                mCallbackBuffers[i] = new byte[bufSize];
+            }
+        }
+        for (byte[] buffer : mCallbackBuffers) {
             mCamera.addCallbackBuffer(buffer);
         }
         mExpectedFrameSize = bufSize;
@@ -382,6 +458,7 @@ public class VideoCapture implements PreviewCallback {
                 return 0;
             }
             mIsRunning = true;
+            mFrameStats.reset();
         } finally {
             mPreviewBufferLock.unlock();
         }
@@ -403,6 +480,11 @@ public class VideoCapture implements PreviewCallback {
                 return 0;
             }
             mIsRunning = false;
+            // Native code may go away once capture is stopped, so let a frame being delivered
+            // finish first, unless native code stops capture from within the delivery.
+            while (mDeliveringThread != null && mDeliveringThread != Thread.currentThread()) {
+                mFrameDelivered.awaitUninterruptibly();
+            }
         } finally {
             mPreviewBufferLock.unlock();
         }
@@ -433,35 +515,88 @@ public class VideoCapture implements PreviewCallback {
 
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
-        mPreviewBufferLock.lock();
+        long arrivalUs = System.nanoTime() / 1000;
         try {
-            if (!mIsRunning) {
-                return;
-            }
-            if (data.length == mExpectedFrameSize) {
-                int rotation = getDeviceOrientation();
-                if (rotation != mDeviceOrientation) {
-                    mDeviceOrientation = rotation;
-                    Log.d(TAG,
-                          "onPreviewFrame: device orientation=" +
-                          mDeviceOrientation + ", camera orientation=" +
-                          mCameraOrientation);
+            mPreviewBufferLock.lock();
+            try {
+                if (!mIsRunning) {
+                    return;
                 }
-                if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK) {
-                    rotation = 360 - rotation;
+                mDeliveringThread = Thread.currentThread();
+            } finally {
+                mPreviewBufferLock.unlock();
+            }
+
+            try {
+                deliverFrame(data, arrivalUs);
+            } finally {
+                mPreviewBufferLock.lock();
+                try {
+                    mDeliveringThread = null;
+                    mFrameDelivered.signalAll();
+                } finally {
+                    mPreviewBufferLock.unlock();
                 }
-                rotation = (mCameraOrientation + rotation) % 360;
-                nativeOnFrameAvailable(mNativeVideoCaptureDeviceAndroid,
-                        data, mExpectedFrameSize, rotation);
             }
         } finally {
-            mPreviewBufferLock.unlock();
+            // The buffer goes back to the camera for the next frame; native code doesn't keep
+            // it past nativeOnFrameAvailable().
             if (camera != null) {
                 camera.addCallbackBuffer(data);
             }
         }
     }
 
+    // Called without mPreviewBufferLock, with mDeliveringThread set.
+    private void deliverFrame(byte[] data, long arrivalUs) {
+        mFrameStats.onFrameArrived(arrivalUs / 1000, mCaptureFormat.mFramerate);
+        if (data.length != mExpectedFrameSize) {
+            mFrameStats.onFrameDropped();
+            return;
+        }
+
+        int rotation = getDeviceOrientation();
+        if (rotation != mDeviceOrientation) {
+            mDeviceOrientation = rotation;
+            Log.d(TAG,
+                  "onPreviewFrame: device orientation=" +
+                  mDeviceOrientation + ", camera orientation=" +
+                  mCameraOrientation);
+        }
+        if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+            rotation = 360 - rotation;
+        }
+        rotation = (mCameraOrientation + rotation) % 360;
+        nativeOnFrameAvailable(mNativeVideoCaptureDeviceAndroid,
+                data, mExpectedFrameSize, rotation);
+
+        long nowUs = System.nanoTime() / 1000;
+        mFrameStats.onFrameDelivered(nowUs - arrivalUs, nowUs / 1000);
+    }
+
+    /**
+     * @return The number of frames handed to native code during the last full second of capture.
+     */
+    public int getFramesDeliveredLastSecond() {
+        return mFrameStats.mDeliveredLastSecond;
+    }
+
+    /**
+     * @return The number of frames skipped by the camera or discarded for having an unexpected
+     *         size during the last full second of capture.
+     */
+    public int getFramesDroppedLastSecond() {
+        return mFrameStats.mDroppedLastSecond;
+    }
+
+    /**
+     * @return The average time, in microseconds, from a frame reaching onPreviewFrame() to
+     *         native code returning from it, during the last full second of capture.
+     */
+    public long getAverageFrameLatencyUsLastSecond() {
+        return mFrameStats.mAverageLatencyUsLastSecond;
+    }
+
     // TODO(wjia): investigate whether reading from texture could give better
     // performance and frame rate, using onFrameAvailable().
 
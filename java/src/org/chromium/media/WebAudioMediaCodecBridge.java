@@ -17,13 +17,39 @@ import org.chromium.base.JNINamespace;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 @JNINamespace("media")
 class WebAudioMediaCodecBridge {
     static final String LOG_TAG = "WebAudioMediaCodec";
-    // TODO(rtoy): What is the correct timeout value for reading
-    // from a file in memory?
-    static final long TIMEOUT_MICROSECONDS = 500;
+    // How long a decode stage waits for the codec or for the next stage before checking whether
+    // the decode was stopped.
+    static final long STAGE_TIMEOUT_MICROSECONDS = 10000;
+    // Decoded audio is handed to native code in chunks of about this size, rather than once
+    // per codec output buffer.
+    static final int CHUNK_SIZE_BYTES = 64 * 1024;
+    // The number of decoded chunks that may wait for native code.
+    static final int MAX_QUEUED_CHUNKS = 4;
+
+    // Runs the input and output stages of every decode. Idle threads are kept for a while, so
+    // back to back decodes reuse them.
+    private static final ExecutorService sStageExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, LOG_TAG + "Stage");
+                }
+            });
+
     @CalledByNative
     private static String CreateTempFile(Context ctx) throws java.io.IOException {
         File outputDirectory = ctx.getCacheDir();
@@ -36,7 +62,17 @@ class WebAudioMediaCodecBridge {
                                            long nativeMediaCodecBridge,
                                            int inputFD,
                                            long dataSize) {
+        return decode(nativeMediaCodecBridge, inputFD, dataSize,
+                new NativeDestination(nativeMediaCodecBridge));
+    }
 
+    /**
+     * Decodes the file |inputFD| refers to into |destination|, on the calling thread.
+     * @param decodeId identifies the decode to cancelDecode() and progress listeners
+     * @return true iff the whole file was decoded
+     */
+    static boolean decode(long decodeId, int inputFD, long dataSize,
+            Destination destination) {
         if (dataSize < 0 || dataSize > 0x7fffffff)
             return false;
 
@@ -62,11 +98,6 @@ class WebAudioMediaCodecBridge {
         // Number of channels specified in the file
         int inputChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
 
-        // Number of channels the decoder will provide. (Not
-        // necessarily the same as inputChannelCount.  See
-        // crbug.com/266006.)
-        int outputChannelCount = inputChannelCount;
-
         int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
         String mime = format.getString(MediaFormat.KEY_MIME);
 
@@ -103,98 +134,395 @@ class WebAudioMediaCodecBridge {
         codec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */);
         codec.start();
 
-        ByteBuffer[] codecInputBuffers = codec.getInputBuffers();
-        ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
-
         // A track must be selected and will be used to read samples.
         extractor.selectTrack(0);
 
-        boolean sawInputEOS = false;
-        boolean sawOutputEOS = false;
-        boolean destinationInitialized = false;
-
-        // Keep processing until the output is done.
-        while (!sawOutputEOS) {
-            if (!sawInputEOS) {
-                // Input side
-                int inputBufIndex = codec.dequeueInputBuffer(TIMEOUT_MICROSECONDS);
-
-                if (inputBufIndex >= 0) {
-                    ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
-                    int sampleSize = extractor.readSampleData(dstBuf, 0);
-                    long presentationTimeMicroSec = 0;
-
-                    if (sampleSize < 0) {
-                        sawInputEOS = true;
-                        sampleSize = 0;
-                    } else {
-                        presentationTimeMicroSec = extractor.getSampleTime();
-                    }
+        DecodeJob job = new DecodeJob(decodeId, destination, extractor, codec,
+                inputChannelCount, sampleRate, durationMicroseconds, mime);
+        sDecodeJobs.put(decodeId, job);
+        boolean decoded;
+        try {
+            decoded = job.run();
+        } finally {
+            sDecodeJobs.remove(decodeId);
+        }
+
+        encodedFD.detachFd();
+
+        codec.stop();
+        codec.release();
+        codec = null;
+
+        return decoded;
+    }
+
+    /**
+     * Receives the decoded audio of one decode; native code outside of tests.
+     */
+    interface Destination {
+        /**
+         * Called once, before the first chunk.
+         */
+        void initialize(int inputChannelCount, int sampleRate, long durationMicroseconds);
+
+        /**
+         * Called with each chunk of decoded 16 bit PCM; |buf| is only valid during the call.
+         */
+        void onChunkDecoded(ByteBuffer buf, int size, int inputChannelCount,
+                int outputChannelCount);
+    }
+
+    private static class NativeDestination implements Destination {
+        private final long mNativeMediaCodecBridge;
+
+        NativeDestination(long nativeMediaCodecBridge) {
+            mNativeMediaCodecBridge = nativeMediaCodecBridge;
+        }
+
+        @Override
+        public void initialize(int inputChannelCount, int sampleRate,
+                long durationMicroseconds) {
+            nativeInitializeDestination(mNativeMediaCodecBridge, inputChannelCount, sampleRate,
+                    durationMicroseconds);
+        }
+
+        @Override
+        public void onChunkDecoded(ByteBuffer buf, int size, int inputChannelCount,
+                int outputChannelCount) {
+            nativeOnChunkDecoded(mNativeMediaCodecBridge, buf, size, inputChannelCount,
+                    outputChannelCount);
+        }
+    }
+
+    /**
+     * Receives the progress of audio file decodes.
+     */
+    interface DecodeProgressListener {
+        /**
+         * Called on the decoding thread each time a chunk of decoded audio has been handed over.
+         * @param decodeId the decode, as passed to decode(); the native bridge for decodes
+         *         started by native code
+         * @param decodedMicroseconds the presentation time decoded so far
+         * @param durationMicroseconds the duration of the file, or 0 if unknown
+         */
+        void onDecodeProgress(long decodeId, long decodedMicroseconds,
+                long durationMicroseconds);
+    }
+
+    private static volatile DecodeProgressListener sProgressListener;
+
+    // The decodes in progress, keyed by their id.
+    private static final Map<Long, DecodeJob> sDecodeJobs =
+            new ConcurrentHashMap<Long, DecodeJob>();
+
+    static void setDecodeProgressListener(DecodeProgressListener listener) {
+        sProgressListener = listener;
+    }
+
+    /**
+     * Cancels the decode |decodeId|, if it is in progress. The decode then returns false
+     * without handing over any further audio. May be called from any thread, including from
+     * a progress listener.
+     */
+    static void cancelDecode(long decodeId) {
+        DecodeJob job = sDecodeJobs.get(decodeId);
+        if (job != null) job.cancel();
+    }
+
+    /**
+     * A chunk of decoded audio, batched from one or more codec output buffers that share the
+     * same output format.
+     */
+    private static class Chunk {
+        final ByteBuffer mBuffer;
+        int mSampleRate;
+        int mOutputChannelCount;
+        long mEndTimeMicroseconds;
+        boolean mEndOfStream;
+
+        Chunk(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+    }
+
+    /**
+     * Decodes one file in three stages: an input stage feeds the codec from the extractor, an
+     * output stage batches the decoded buffers into chunks, and the calling thread hands the
+     * chunks to the destination. The first two run on the shared stage executor. The stages are
+     * connected by bounded queues, so no stage runs more than a few chunks ahead of the next one.
+     */
+    private static class DecodeJob {
+        private final long mDecodeId;
+        private final Destination mDestination;
+        private final MediaExtractor mExtractor;
+        private final MediaCodec mCodec;
+        private final int mInputChannelCount;
+        private final long mDurationMicroseconds;
+        private final String mMime;
+
+        // Accessed by the output stage only.
+        private int mSampleRate;
+        // Number of channels the decoder will provide. (Not
+        // necessarily the same as mInputChannelCount.  See
+        // crbug.com/266006.)
+        private int mOutputChannelCount;
+
+        // Chunks ready for native code, and empty chunk buffers ready for reuse.
+        private final BlockingQueue<Chunk> mDecodedChunks =
+                new ArrayBlockingQueue<Chunk>(MAX_QUEUED_CHUNKS);
+        private final BlockingQueue<ByteBuffer> mFreeBuffers =
+                new ArrayBlockingQueue<ByteBuffer>(MAX_QUEUED_CHUNKS + 1);
+
+        // Set when the hand-off stops before the end of the stream.
+        private volatile boolean mHandOffStopped = false;
+        private volatile boolean mCancelled = false;
+        private volatile boolean mFailed = false;
+
+        DecodeJob(long decodeId, Destination destination, MediaExtractor extractor,
+                MediaCodec codec, int inputChannelCount, int sampleRate, long durationMicroseconds,
+                String mime) {
+            mDecodeId = decodeId;
+            mDestination = destination;
+            mExtractor = extractor;
+            mCodec = codec;
+            mInputChannelCount = inputChannelCount;
+            mOutputChannelCount = inputChannelCount;
+            mSampleRate = sampleRate;
+            mDurationMicroseconds = durationMicroseconds;
+            mMime = mime;
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
 
-                    codec.queueInputBuffer(inputBufIndex,
-                                           0, /* offset */
-                                           sampleSize,
-                                           presentationTimeMicroSec,
-                                           sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+        private boolean isStopped() {
+            return mHandOffStopped || mCancelled || mFailed;
+        }
 
-                    if (!sawInputEOS) {
-                        extractor.advance();
+        /**
+         * Runs the decode, handing the decoded audio to native code on the calling thread.
+         * @return true iff the whole file was decoded
+         */
+        boolean run() {
+            Future<?> input = sStageExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        feedInput();
+                    } catch (IllegalStateException e) {
+                        Log.e(LOG_TAG, "Failed to feed the decoder", e);
+                        mFailed = true;
+                    }
+                }
+            });
+            Future<?> output = sStageExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drainOutput();
+                    } catch (IllegalStateException e) {
+                        Log.e(LOG_TAG, "Failed to read decoded audio", e);
+                        mFailed = true;
                     }
                 }
+            });
+
+            boolean completed = false;
+            try {
+                completed = handOffChunks();
+            } finally {
+                // Unblocks the other stages if the hand-off stopped early.
+                if (!completed) mHandOffStopped = true;
+                waitUninterruptibly(input);
+                waitUninterruptibly(output);
             }
+            return completed && !isStopped();
+        }
 
-            // Output side
+        /**
+         * Stage 1: queues the samples read by the extractor to the codec.
+         */
+        private void feedInput() {
+            ByteBuffer[] codecInputBuffers = mCodec.getInputBuffers();
+            boolean sawInputEOS = false;
+            while (!sawInputEOS && !isStopped()) {
+                int inputBufIndex = mCodec.dequeueInputBuffer(STAGE_TIMEOUT_MICROSECONDS);
+                if (inputBufIndex < 0) continue;
+
+                ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
+                int sampleSize = mExtractor.readSampleData(dstBuf, 0);
+                long presentationTimeMicroSec = 0;
+
+                if (sampleSize < 0) {
+                    sawInputEOS = true;
+                    sampleSize = 0;
+                } else {
+                    presentationTimeMicroSec = mExtractor.getSampleTime();
+                }
+
+                mCodec.queueInputBuffer(inputBufIndex,
+                                        0, /* offset */
+                                        sampleSize,
+                                        presentationTimeMicroSec,
+                                        sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+
+                if (!sawInputEOS) {
+                    mExtractor.advance();
+                }
+            }
+        }
+
+        /**
+         * Stage 2: copies the codec output into chunks of up to CHUNK_SIZE_BYTES. A chunk is
+         * closed when it is full, when the output format changes and at the end of the stream.
+         */
+        private void drainOutput() {
+            ByteBuffer[] codecOutputBuffers = mCodec.getOutputBuffers();
             MediaCodec.BufferInfo info = new BufferInfo();
-            final int outputBufIndex = codec.dequeueOutputBuffer(info, TIMEOUT_MICROSECONDS);
+            Chunk chunk = null;
+            boolean sawOutputEOS = false;
+            while (!sawOutputEOS && !isStopped()) {
+                final int outputBufIndex =
+                        mCodec.dequeueOutputBuffer(info, STAGE_TIMEOUT_MICROSECONDS);
+
+                if (outputBufIndex >= 0) {
+                    ByteBuffer buf = codecOutputBuffers[outputBufIndex];
+                    if (info.size > 0) {
+                        if (chunk != null && chunk.mBuffer.remaining() < info.size) {
+                            queueChunk(chunk);
+                            chunk = null;
+                        }
+                        if (chunk == null) chunk = newChunk(info.size);
+                        buf.limit(info.offset + info.size);
+                        buf.position(info.offset);
+                        chunk.mBuffer.put(buf);
+                    } else if (chunk == null) {
+                        // Native code is initialized with the format of the first output
+                        // buffer, so hand it over even if it holds no audio.
+                        chunk = newChunk(0);
+                    }
+
+                    chunk.mEndTimeMicroseconds = info.presentationTimeUs;
 
-            if (outputBufIndex >= 0) {
-                ByteBuffer buf = codecOutputBuffers[outputBufIndex];
+                    buf.clear();
+                    mCodec.releaseOutputBuffer(outputBufIndex, false /* render */);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        sawOutputEOS = true;
+                        chunk.mEndOfStream = true;
+                        queueChunk(chunk);
+                        chunk = null;
+                    }
+                } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    codecOutputBuffers = mCodec.getOutputBuffers();
+                } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat newFormat = mCodec.getOutputFormat();
+                    if (chunk != null) {
+                        queueChunk(chunk);
+                        chunk = null;
+                    }
+                    mOutputChannelCount = newFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    mSampleRate = newFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    Log.d(LOG_TAG, "output format changed to " + newFormat);
+                }
+            }
+        }
+
+        private Chunk newChunk(int minSize) {
+            ByteBuffer buffer = mFreeBuffers.poll();
+            if (buffer == null || buffer.capacity() < minSize) {
+                // The codec's output buffers must be read through a direct buffer by native
+                // code.
+                buffer = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE_BYTES, minSize));
+            }
+            buffer.clear();
+            Chunk chunk = new Chunk(buffer);
+            chunk.mSampleRate = mSampleRate;
+            chunk.mOutputChannelCount = mOutputChannelCount;
+            return chunk;
+        }
+
+        /**
+         * Hands |chunk| to the native hand-off stage, waiting while the queue is full.
+         * @return false if the decode was stopped first
+         */
+        private boolean queueChunk(Chunk chunk) {
+            chunk.mBuffer.flip();
+            try {
+                while (!isStopped()) {
+                    if (mDecodedChunks.offer(chunk, STAGE_TIMEOUT_MICROSECONDS,
+                            TimeUnit.MICROSECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                mFailed = true;
+            }
+            return false;
+        }
+
+        /**
+         * Stage 3: hands the decoded chunks to the destination, on the calling thread.
+         * @return true once the end of the stream was handed over
+         */
+        private boolean handOffChunks() {
+            boolean destinationInitialized = false;
+            while (!isStopped()) {
+                Chunk chunk;
+                try {
+                    chunk = mDecodedChunks.poll(STAGE_TIMEOUT_MICROSECONDS, TimeUnit.MICROSECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                if (chunk == null) continue;
 
                 if (!destinationInitialized) {
                     // Initialize the destination as late as possible to
                     // catch any changes in format. But be sure to
                     // initialize it BEFORE we send any decoded audio,
                     // and only initialize once.
-                    Log.d(LOG_TAG, "Final:  Rate: " + sampleRate +
-                          " Channels: " + inputChannelCount +
-                          " Mime: " + mime +
-                          " Duration: " + durationMicroseconds + " microsec");
-
-                    nativeInitializeDestination(nativeMediaCodecBridge,
-                                                inputChannelCount,
-                                                sampleRate,
-                                                durationMicroseconds);
+                    Log.d(LOG_TAG, "Final:  Rate: " + chunk.mSampleRate +
+                          " Channels: " + mInputChannelCount +
+                          " Mime: " + mMime +
+                          " Duration: " + mDurationMicroseconds + " microsec");
+
+                    mDestination.initialize(mInputChannelCount, chunk.mSampleRate,
+                                            mDurationMicroseconds);
                     destinationInitialized = true;
                 }
 
-                if (destinationInitialized && info.size > 0) {
-                    nativeOnChunkDecoded(nativeMediaCodecBridge, buf, info.size,
-                                         inputChannelCount, outputChannelCount);
+                int size = chunk.mBuffer.remaining();
+                if (size > 0) {
+                    mDestination.onChunkDecoded(chunk.mBuffer, size, mInputChannelCount,
+                                                chunk.mOutputChannelCount);
                 }
+                mFreeBuffers.offer(chunk.mBuffer);
 
-                buf.clear();
-                codec.releaseOutputBuffer(outputBufIndex, false /* render */);
-
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    sawOutputEOS = true;
+                DecodeProgressListener listener = sProgressListener;
+                if (listener != null) {
+                    listener.onDecodeProgress(mDecodeId, chunk.mEndTimeMicroseconds,
+                            mDurationMicroseconds);
                 }
-            } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                codecOutputBuffers = codec.getOutputBuffers();
-            } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat newFormat = codec.getOutputFormat();
-                outputChannelCount = newFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-                sampleRate = newFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-                Log.d(LOG_TAG, "output format changed to " + newFormat);
+                if (chunk.mEndOfStream) return true;
             }
+            return false;
         }
 
-        encodedFD.detachFd();
-
-        codec.stop();
-        codec.release();
-        codec = null;
-
-        return true;
+        private void waitUninterruptibly(Future<?> stage) {
+            while (true) {
+                try {
+                    stage.get();
+                    return;
+                } catch (InterruptedException e) {
+                    // Keep waiting; the stage exits once the decode is stopped.
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Decode stage failed", e.getCause());
+                    mFailed = true;
+                    return;
+                }
+            }
+        }
     }
 
     private static native void nativeOnChunkDecoded(
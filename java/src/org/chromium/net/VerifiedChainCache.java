@@ -0,0 +1,126 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.net;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the certificate chains that {@link X509Util} verified successfully, so
+ * that repeated handshakes with the same server skip parsing and the trust manager.
+ *
+ * Entries are keyed by a digest of the DER encoded chain together with the host and the key
+ * exchange algorithm, and are trusted until the earliest expiry of the certificates involved.
+ * Only successful verifications are cached; failures are always verified again. The cache is
+ * cleared whenever the trusted roots or client certificates change. All methods are thread
+ * safe.
+ */
+class VerifiedChainCache {
+    private static final int MAX_ENTRIES = 64;
+
+    private static final class Entry {
+        final AndroidCertVerifyResult mResult;
+        final long mExpiryTimeMs;
+
+        Entry(AndroidCertVerifyResult result, long expiryTimeMs) {
+            mResult = result;
+            mExpiryTimeMs = expiryTimeMs;
+        }
+    }
+
+    // Access-ordered, so the least recently used entry is evicted first.
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // Incremented by clear(), so verifications that started before it are not cached.
+    private int mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @return The key for verifying |certChain| for |host| with |authType|, or null if the
+     *         chain can't be digested, in which case it is not cached.
+     */
+    static String createKey(byte[][] certChain, String authType, String host) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        for (byte[] cert : certChain) {
+            if (cert == null) return null;
+            // Length-prefix every certificate so that different splits of the same bytes don't
+            // collide.
+            int length = cert.length;
+            digest.update(new byte[] {
+                (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+                (byte) length });
+            digest.update(cert);
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.append('|').append(host).append('|').append(authType).toString();
+    }
+
+    /**
+     * @return The cached result for |key|, or null if there is none or it has expired.
+     */
+    synchronized AndroidCertVerifyResult get(String key, long nowMs) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        if (entry.mExpiryTimeMs <= nowMs) {
+            mEntries.remove(key);
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.mResult;
+    }
+
+    /**
+     * @return The current generation, to be passed to {@link #put} once verification is done.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a successful |result| until |expiryTimeMs|, unless the cache was cleared since
+     * |generation| was read.
+     */
+    synchronized void put(String key, AndroidCertVerifyResult result, long expiryTimeMs,
+            int generation) {
+        assert result.getStatus() == CertVerifyStatusAndroid.VERIFY_OK;
+        if (generation != mGeneration) return;
+        mEntries.put(key, new Entry(result, expiryTimeMs));
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mGeneration++;
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
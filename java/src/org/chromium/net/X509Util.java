@@ -105,7 +105,22 @@ public class X509Util {
         }
     }
 
-    private static CertificateFactory sCertificateFactory;
+    /**
+     * The trust managers used for verification. A new instance is published whenever one of
+     * them is reloaded, so verification reads them without locking.
+     */
+    private static final class TrustManagers {
+        final X509TrustManagerImplementation mDefaultTrustManager;
+        final X509TrustManagerImplementation mTestTrustManager;
+
+        TrustManagers(X509TrustManagerImplementation defaultTrustManager,
+                X509TrustManagerImplementation testTrustManager) {
+            mDefaultTrustManager = defaultTrustManager;
+            mTestTrustManager = testTrustManager;
+        }
+    }
+
+    private static volatile CertificateFactory sCertificateFactory;
 
     private static final String OID_TLS_SERVER_AUTH = "1.3.6.1.5.5.7.3.1";
     private static final String OID_ANY_EKU = "2.5.29.37.0";
@@ -134,7 +149,13 @@ public class X509Util {
     private static KeyStore sTestKeyStore;
 
     /**
-     * Lock object used to synchronize all calls that modify or depend on the trust managers.
+     * The current trust managers, or null until they are (re)initialized. Only written with
+     * sLock held.
+     */
+    private static volatile TrustManagers sTrustManagers;
+
+    /**
+     * Lock object used to synchronize all calls that modify the trust managers.
      */
     private static final Object sLock = new Object();
 
@@ -145,11 +166,19 @@ public class X509Util {
      */
     private static boolean sDisableNativeCodeForTest = false;
 
+    /**
+     * Chains that were recently verified successfully.
+     */
+    private static final VerifiedChainCache sVerifiedChainCache = new VerifiedChainCache();
+
     /**
      * Ensures that the trust managers and certificate factory are initialized.
+     * @return The current trust managers.
      */
-    private static void ensureInitialized() throws CertificateException,
+    private static TrustManagers ensureInitialized() throws CertificateException,
             KeyStoreException, NoSuchAlgorithmException {
+        TrustManagers trustManagers = sTrustManagers;
+        if (trustManagers != null) return trustManagers;
         synchronized (sLock) {
             if (sCertificateFactory == null) {
                 sCertificateFactory = CertificateFactory.getInstance("X.509");
@@ -173,6 +202,10 @@ public class X509Util {
                 nativeGetApplicationContext().registerReceiver(sTrustStorageListener,
                         new IntentFilter(KeyChain.ACTION_STORAGE_CHANGED));
             }
+            if (sTrustManagers == null) {
+                sTrustManagers = new TrustManagers(sDefaultTrustManager, sTestTrustManager);
+            }
+            return sTrustManagers;
         }
     }
 
@@ -209,7 +242,10 @@ public class X509Util {
      */
     private static void reloadTestTrustManager() throws KeyStoreException,
             NoSuchAlgorithmException {
+        assert Thread.holdsLock(sLock);
         sTestTrustManager = X509Util.createTrustManager(sTestKeyStore);
+        sTrustManagers = new TrustManagers(sDefaultTrustManager, sTestTrustManager);
+        sVerifiedChainCache.clear();
     }
 
     /**
@@ -217,13 +253,18 @@ public class X509Util {
      */
     private static void reloadDefaultTrustManager() throws KeyStoreException,
             NoSuchAlgorithmException, CertificateException {
-        sDefaultTrustManager = null;
+        synchronized (sLock) {
+            sDefaultTrustManager = null;
+            sTrustManagers = null;
+            sVerifiedChainCache.clear();
+        }
         nativeNotifyKeyChainChanged();
         ensureInitialized();
     }
 
     public static void notifyClientCertificatesChanged() {
         Log.d(TAG, "ClientCertificatesChanged!");
+        sVerifiedChainCache.clear();
         nativeNotifyClientCertificatesChanged();
     }
 
@@ -305,9 +346,19 @@ public class X509Util {
                     "chain passed as |certChain|. |certChain|=" + Arrays.deepToString(certChain));
         }
 
+        // Read before anything is verified, so a trust store change during verification keeps
+        // the result out of the cache.
+        int cacheGeneration = sVerifiedChainCache.getGeneration();
+        String cacheKey = VerifiedChainCache.createKey(certChain, authType, host);
+        if (cacheKey != null) {
+            AndroidCertVerifyResult cachedResult =
+                    sVerifiedChainCache.get(cacheKey, System.currentTimeMillis());
+            if (cachedResult != null) return cachedResult;
+        }
 
+        TrustManagers trustManagers;
         try {
-            ensureInitialized();
+            trustManagers = ensureInitialized();
         } catch (CertificateException e) {
             return new AndroidCertVerifyResult(CertVerifyStatusAndroid.VERIFY_FAILED);
         }
@@ -339,32 +390,53 @@ public class X509Util {
             return new AndroidCertVerifyResult(CertVerifyStatusAndroid.VERIFY_FAILED);
         }
 
-        synchronized (sLock) {
-            List<X509Certificate> verifiedChain;
+        // The trust managers are immutable once published, so concurrent handshakes verify in
+        // parallel.
+        List<X509Certificate> verifiedChain;
+        try {
+            verifiedChain = trustManagers.mDefaultTrustManager.checkServerTrusted(
+                    serverCertificates, authType, host);
+        } catch (CertificateException eDefaultManager) {
             try {
-                verifiedChain = sDefaultTrustManager.checkServerTrusted(serverCertificates,
-                                                                        authType, host);
-            } catch (CertificateException eDefaultManager) {
-                try {
-                    verifiedChain = sTestTrustManager.checkServerTrusted(serverCertificates,
-                                                                         authType, host);
-                } catch (CertificateException eTestManager) {
-                    // Neither of the trust managers confirms the validity of the certificate chain,
-                    // log the error message returned by the system trust manager.
-                    Log.i(TAG, "Failed to validate the certificate chain, error: " +
-                              eDefaultManager.getMessage());
-                    return new AndroidCertVerifyResult(
-                            CertVerifyStatusAndroid.VERIFY_NO_TRUSTED_ROOT);
-                }
+                verifiedChain = trustManagers.mTestTrustManager.checkServerTrusted(
+                        serverCertificates, authType, host);
+            } catch (CertificateException eTestManager) {
+                // Neither of the trust managers confirms the validity of the certificate chain,
+                // log the error message returned by the system trust manager.
+                Log.i(TAG, "Failed to validate the certificate chain, error: " +
+                          eDefaultManager.getMessage());
+                return new AndroidCertVerifyResult(
+                        CertVerifyStatusAndroid.VERIFY_NO_TRUSTED_ROOT);
             }
+        }
 
-            // TODO(davidben): This code was removed for
-            // http://crbug.com/361166. Fix the performance regression and
-            // export it again.
-            boolean isIssuedByKnownRoot = false;
-            return new AndroidCertVerifyResult(CertVerifyStatusAndroid.VERIFY_OK,
-                                               isIssuedByKnownRoot, verifiedChain);
+        // TODO(davidben): This code was removed for
+        // http://crbug.com/361166. Fix the performance regression and
+        // export it again.
+        boolean isIssuedByKnownRoot = false;
+        AndroidCertVerifyResult result = new AndroidCertVerifyResult(
+                CertVerifyStatusAndroid.VERIFY_OK, isIssuedByKnownRoot, verifiedChain);
+        if (cacheKey != null) {
+            sVerifiedChainCache.put(cacheKey, result,
+                    getEarliestExpiryTimeMs(serverCertificates, verifiedChain),
+                    cacheGeneration);
+        }
+        return result;
+    }
+
+    /**
+     * @return The time at which the first of the given certificates expires.
+     */
+    private static long getEarliestExpiryTimeMs(X509Certificate[] serverCertificates,
+            List<X509Certificate> verifiedChain) {
+        long expiryTimeMs = Long.MAX_VALUE;
+        for (X509Certificate certificate : serverCertificates) {
+            expiryTimeMs = Math.min(expiryTimeMs, certificate.getNotAfter().getTime());
+        }
+        for (X509Certificate certificate : verifiedChain) {
+            expiryTimeMs = Math.min(expiryTimeMs, certificate.getNotAfter().getTime());
         }
+        return expiryTimeMs;
     }
 
     public static void setDisableNativeCodeForTest(boolean disabled) {
@@ -0,0 +1,113 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.android_webview;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.chromium.base.test.util.AdvancedMockContext;
+import org.chromium.base.test.util.Feature;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests and benchmarks the mime type cache of AndroidProtocolHandler, resolving the types of a
+ * page's content:// subresources through a mock provider that counts its getType() calls.
+ */
+public class AndroidProtocolHandlerMimeTypeTest extends InstrumentationTestCase {
+    private static final String TAG = "AndroidProtocolHandlerMimeTypeTest";
+    private static final String AUTHORITY = "org.chromium.android_webview.test.mimetypes";
+    private static final int SUBRESOURCE_COUNT = 500;
+    private static final String[] EXTENSIONS = { "png", "css", "js", "woff", "html" };
+    // Every tenth subresource has no extension and is cached on its own.
+    private static final int EXTENSIONLESS_INTERVAL = 10;
+    // Stands in for the binder round trip of a provider in another process.
+    private static final long GET_TYPE_COST_MS = 1;
+
+    private final AtomicInteger mGetTypeCount = new AtomicInteger();
+    private AdvancedMockContext mContext;
+    private String[] mUrls;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new AdvancedMockContext(getInstrumentation().getTargetContext());
+        mContext.getMockContentResolver().addProvider(AUTHORITY, new MockContentProvider() {
+            @Override
+            public String getType(Uri uri) {
+                mGetTypeCount.incrementAndGet();
+                SystemClock.sleep(GET_TYPE_COST_MS);
+                String path = uri.getPath();
+                if (path.endsWith(".css")) return "text/css";
+                if (path.endsWith(".js")) return "application/javascript";
+                if (path.endsWith(".html")) return "text/html";
+                return "image/png";
+            }
+        });
+        mUrls = new String[SUBRESOURCE_COUNT];
+        for (int i = 0; i < SUBRESOURCE_COUNT; ++i) {
+            if (i % EXTENSIONLESS_INTERVAL == 0) {
+                mUrls[i] = "content://" + AUTHORITY + "/blob/" + i;
+            } else {
+                mUrls[i] = "content://" + AUTHORITY + "/res/" + i + "."
+                        + EXTENSIONS[i % EXTENSIONS.length];
+            }
+        }
+        AndroidProtocolHandler.clearMimeTypeCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        AndroidProtocolHandler.clearMimeTypeCache();
+        super.tearDown();
+    }
+
+    // Resolves the type of every subresource, as a page load does, and returns the time taken.
+    private long loadPage() {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        for (String url : mUrls) {
+            assertNotNull(url, AndroidProtocolHandler.getMimeType(mContext, null, url));
+        }
+        return SystemClock.elapsedRealtime() - startTimeMs;
+    }
+
+    @SmallTest
+    @Feature({"AndroidWebView"})
+    public void testPageWithContentSubresources() {
+        int expectedLookups = EXTENSIONS.length + SUBRESOURCE_COUNT / EXTENSIONLESS_INTERVAL;
+
+        long coldMs = loadPage();
+        assertEquals(expectedLookups, mGetTypeCount.get());
+
+        long warmMs = loadPage();
+        assertEquals(expectedLookups, mGetTypeCount.get());
+
+        Log.i(TAG, SUBRESOURCE_COUNT + " content:// subresources: cold load " + coldMs
+                + " ms, warm load " + warmMs + " ms, " + expectedLookups
+                + " provider lookups instead of " + 2 * SUBRESOURCE_COUNT);
+        assertTrue(coldMs >= warmMs);
+    }
+
+    @SmallTest
+    @Feature({"AndroidWebView"})
+    public void testInvalidateAuthority() {
+        String url = "content://" + AUTHORITY + "/res/style.css";
+        assertEquals("text/css", AndroidProtocolHandler.getMimeType(mContext, null, url));
+        assertEquals("text/css", AndroidProtocolHandler.getMimeType(mContext, null, url));
+        assertEquals(1, mGetTypeCount.get());
+
+        AndroidProtocolHandler.invalidateMimeTypeCache("some.other.authority");
+        AndroidProtocolHandler.getMimeType(mContext, null, url);
+        assertEquals(1, mGetTypeCount.get());
+
+        AndroidProtocolHandler.invalidateMimeTypeCache(AUTHORITY);
+        AndroidProtocolHandler.getMimeType(mContext, null, url);
+        assertEquals(2, mGetTypeCount.get());
+    }
+}
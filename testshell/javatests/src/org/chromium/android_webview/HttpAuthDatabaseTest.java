@@ -0,0 +1,115 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.android_webview;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import org.chromium.base.test.util.Feature;
+import org.chromium.content.browser.test.util.Criteria;
+import org.chromium.content.browser.test.util.CriteriaHelper;
+
+/**
+ * Tests HttpAuthDatabase's in-memory index and write-behind, and benchmarks it with 10k stored
+ * realms.
+ */
+public class HttpAuthDatabaseTest extends InstrumentationTestCase {
+    private static final String TAG = "HttpAuthDatabaseTest";
+    private static final String DATABASE_FILE = "http_auth_test.db";
+    private static final int REALM_COUNT = 10000;
+    private static final long PERSIST_TIMEOUT_MS = 10000;
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mContext.deleteDatabase(DATABASE_FILE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_FILE);
+        super.tearDown();
+    }
+
+    private static String host(int i) {
+        return "host" + (i % 100) + ".example.com";
+    }
+
+    private static String realm(int i) {
+        return "realm" + i;
+    }
+
+    // Waits until the write-behind has stored |count| rows.
+    private void waitForStoredRows(final int count) throws InterruptedException {
+        assertTrue(CriteriaHelper.pollForCriteria(new Criteria() {
+            @Override
+            public boolean isSatisfied() {
+                SQLiteDatabase database = mContext.openOrCreateDatabase(DATABASE_FILE, 0, null);
+                try {
+                    return DatabaseUtils.queryNumEntries(database, "httpauth") == count;
+                } finally {
+                    database.close();
+                }
+            }
+        }, PERSIST_TIMEOUT_MS, CriteriaHelper.DEFAULT_POLLING_INTERVAL));
+    }
+
+    @SmallTest
+    @Feature({"AndroidWebView"})
+    public void testSetIsVisibleBeforePersisted() throws Exception {
+        HttpAuthDatabase database = new HttpAuthDatabase(mContext, DATABASE_FILE);
+        assertFalse(database.hasHttpAuthUsernamePassword());
+
+        database.setHttpAuthUsernamePassword("example.com", "realm", "user", "password");
+        String[] credentials = database.getHttpAuthUsernamePassword("example.com", "realm");
+        assertEquals("user", credentials[0]);
+        assertEquals("password", credentials[1]);
+        assertNull(database.getHttpAuthUsernamePassword("example.com", "other"));
+
+        database.clearHttpAuthUsernamePassword();
+        assertFalse(database.hasHttpAuthUsernamePassword());
+        waitForStoredRows(0);
+    }
+
+    @MediumTest
+    @Feature({"AndroidWebView"})
+    public void testTenThousandRealms() throws Exception {
+        HttpAuthDatabase database = new HttpAuthDatabase(mContext, DATABASE_FILE);
+
+        long startTimeMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < REALM_COUNT; ++i) {
+            database.setHttpAuthUsernamePassword(host(i), realm(i), "user" + i, "password" + i);
+        }
+        long setMs = SystemClock.elapsedRealtime() - startTimeMs;
+        waitForStoredRows(REALM_COUNT);
+        long persistMs = SystemClock.elapsedRealtime() - startTimeMs;
+
+        // A fresh instance loads the stored realms into its index.
+        startTimeMs = SystemClock.elapsedRealtime();
+        HttpAuthDatabase reopened = new HttpAuthDatabase(mContext, DATABASE_FILE);
+        assertTrue(reopened.hasHttpAuthUsernamePassword());
+        long loadMs = SystemClock.elapsedRealtime() - startTimeMs;
+
+        startTimeMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < REALM_COUNT; ++i) {
+            String[] credentials = reopened.getHttpAuthUsernamePassword(host(i), realm(i));
+            assertEquals("user" + i, credentials[0]);
+            assertEquals("password" + i, credentials[1]);
+        }
+        long getMs = SystemClock.elapsedRealtime() - startTimeMs;
+
+        Log.i(TAG, REALM_COUNT + " realms: set " + setMs + " ms, persisted after " + persistMs
+                + " ms, reopened and indexed in " + loadMs + " ms, looked up in " + getMs + " ms");
+    }
+}
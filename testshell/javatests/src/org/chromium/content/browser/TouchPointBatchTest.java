@@ -0,0 +1,181 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import android.view.MotionEvent.PointerCoords;
+import android.view.MotionEvent.PointerProperties;
+
+import org.chromium.base.test.util.Feature;
+
+/**
+ * Tests for TouchPointBatch and its use by ContentViewGestureHandler, including a
+ * micro-benchmark of the allocations made per converted event.
+ */
+public class TouchPointBatchTest extends InstrumentationTestCase {
+    private static final String TAG = "TouchPointBatchTest";
+    private static final int POINTER_COUNT = 3;
+    private static final int EVENT_COUNT = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TouchPoint.initializeConstantsForTesting();
+    }
+
+    private static MotionEvent obtainMultiTouchMove(long downTime, long eventTime, float offset) {
+        PointerProperties[] properties = new PointerProperties[POINTER_COUNT];
+        PointerCoords[] coords = new PointerCoords[POINTER_COUNT];
+        for (int i = 0; i < POINTER_COUNT; ++i) {
+            properties[i] = new PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new PointerCoords();
+            coords[i].x = 100 * i + offset;
+            coords[i].y = 50 * i + offset;
+            coords[i].pressure = 1.0f;
+            coords[i].size = 0.5f;
+        }
+        return MotionEvent.obtain(downTime, eventTime, MotionEvent.ACTION_MOVE, POINTER_COUNT,
+                properties, coords, 0, 0, 1.0f, 1.0f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+    }
+
+    @SmallTest
+    @Feature({"Input"})
+    public void testBatchMatchesTouchPoints() {
+        long downTime = SystemClock.uptimeMillis();
+        MotionEvent event = obtainMultiTouchMove(downTime, downTime + 16, 7.0f);
+        TouchPoint[] points = new TouchPoint[POINTER_COUNT];
+        TouchPointBatch batch = new TouchPointBatch(1);
+
+        int type = TouchPoint.createTouchPoints(event, points);
+        assertEquals(type, TouchPoint.createTouchPoints(event, batch));
+        assertEquals(type, batch.getType());
+        assertEquals(POINTER_COUNT, batch.getCount());
+        assertTrue(batch.getCapacity() >= POINTER_COUNT);
+        assertEquals(downTime, batch.getDownTime());
+        assertEquals(downTime + 16, batch.getEventTime());
+        assertEquals(InputDevice.SOURCE_TOUCHSCREEN, batch.getSource());
+        for (int i = 0; i < POINTER_COUNT; ++i) {
+            assertEquals(points[i].getState(), batch.getState(i));
+            assertEquals(points[i].getId(), batch.getId(i));
+            assertEquals(points[i].getX(), (int) batch.getX(i));
+            assertEquals(points[i].getY(), (int) batch.getY(i));
+            assertEquals(points[i].getSize(), batch.getSize(i), 1e-6);
+            assertEquals(points[i].getPressure(), batch.getPressure(i), 1e-6);
+        }
+        event.recycle();
+
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.getCount());
+    }
+
+    /**
+     * Converts the same stream of multi-touch moves into TouchPoint arrays and into a reused
+     * batch, counting the objects allocated on this thread by each.
+     */
+    @SmallTest
+    @Feature({"Input"})
+    public void testBatchConversionDoesNotAllocate() {
+        long downTime = SystemClock.uptimeMillis();
+        MotionEvent[] events = new MotionEvent[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; ++i) {
+            events[i] = obtainMultiTouchMove(downTime, downTime + i, i);
+        }
+        TouchPointBatch batch = new TouchPointBatch();
+        TouchPoint.createTouchPoints(events[0], batch);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            TouchPoint[] points = new TouchPoint[POINTER_COUNT];
+            for (MotionEvent event : events) {
+                TouchPoint.createTouchPoints(event, points);
+            }
+            int arrayAllocations = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            for (MotionEvent event : events) {
+                TouchPoint.createTouchPoints(event, batch);
+            }
+            int batchAllocations = Debug.getThreadAllocCount();
+
+            Log.i(TAG, "Allocations per event: TouchPoint[] "
+                    + ((float) arrayAllocations / EVENT_COUNT) + ", TouchPointBatch "
+                    + ((float) batchAllocations / EVENT_COUNT));
+            assertEquals(0, batchAllocations);
+        } finally {
+            Debug.stopAllocCounting();
+            for (MotionEvent event : events) {
+                event.recycle();
+            }
+        }
+    }
+
+    /**
+     * The handler tracks the current touch sequence through its batch: events of the sequence
+     * are handled until the last pointer goes up, and late events of it are dropped afterwards.
+     */
+    @SmallTest
+    @Feature({"Input"})
+    public void testGestureHandlerTracksSequenceThroughBatch() throws Throwable {
+        final int[] handledEvents = new int[1];
+        final ContentViewGestureHandler.MotionEventDelegate delegate =
+                new ContentViewGestureHandler.MotionEventDelegate() {
+                    @Override
+                    public void onTouchEventHandlingBegin(MotionEvent event) {
+                        handledEvents[0]++;
+                    }
+
+                    @Override
+                    public void onTouchEventHandlingEnd() {
+                    }
+
+                    @Override
+                    public boolean onGestureEventCreated(int type, long timeMs, int x, int y,
+                            Bundle extraParams) {
+                        return true;
+                    }
+                };
+
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                ContentViewGestureHandler handler = new ContentViewGestureHandler(
+                        getInstrumentation().getTargetContext(), delegate);
+                long downTime = SystemClock.uptimeMillis();
+                MotionEvent down = MotionEvent.obtain(
+                        downTime, downTime, MotionEvent.ACTION_DOWN, 10, 10, 0);
+                MotionEvent move = MotionEvent.obtain(
+                        downTime, downTime + 16, MotionEvent.ACTION_MOVE, 12, 12, 0);
+                MotionEvent up = MotionEvent.obtain(
+                        downTime, downTime + 32, MotionEvent.ACTION_UP, 12, 12, 0);
+                MotionEvent lateMove = MotionEvent.obtain(
+                        downTime, downTime + 48, MotionEvent.ACTION_MOVE, 14, 14, 0);
+
+                handler.onTouchEvent(down);
+                handler.onTouchEvent(move);
+                handler.onTouchEvent(up);
+                assertEquals(3, handledEvents[0]);
+
+                handler.onTouchEvent(lateMove);
+                assertEquals(3, handledEvents[0]);
+
+                down.recycle();
+                move.recycle();
+                up.recycle();
+                lateMove.recycle();
+            }
+        });
+    }
+}
@@ -0,0 +1,228 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.media;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.chromium.base.test.util.Feature;
+import org.chromium.content.browser.test.util.Criteria;
+import org.chromium.content.browser.test.util.CriteriaHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests for AudioOutputRing, playing to a fake sink instead of an AudioTrack.
+ */
+public class AudioOutputRingTest extends TestCase {
+    private static final int BUFFER_SIZE = 1024;
+    private static final int BYTES_PER_FRAME = 4;
+
+    /**
+     * A sink that records what is written to it. While playing, it either plays everything
+     * as soon as it is written or, when stalled, plays nothing.
+     */
+    private static class FakeSink implements AudioOutputRing.Sink {
+        private final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+        private long mFramesWritten;
+        private long mFramesPlayed;
+        private boolean mPlaying;
+        private boolean mStalled;
+        private boolean mOverfilled;
+        private boolean mReleased;
+
+        @Override
+        public synchronized int write(byte[] data, int offset, int size) {
+            mWritten.write(data, offset, size);
+            mFramesWritten += size / BYTES_PER_FRAME;
+            if ((mFramesWritten - mFramesPlayed) * BYTES_PER_FRAME > BUFFER_SIZE) {
+                mOverfilled = true;
+            }
+            if (mPlaying && !mStalled) mFramesPlayed = mFramesWritten;
+            return size;
+        }
+
+        @Override
+        public synchronized void play() {
+            mPlaying = true;
+            if (!mStalled) mFramesPlayed = mFramesWritten;
+        }
+
+        @Override
+        public synchronized void pause() {
+            mPlaying = false;
+        }
+
+        @Override
+        public synchronized void flush() {
+            assertFalse("Flushing a playing track has no effect", mPlaying);
+            mWritten.reset();
+            mFramesWritten = 0;
+            mFramesPlayed = 0;
+        }
+
+        @Override
+        public synchronized void stop() {
+            mPlaying = false;
+        }
+
+        @Override
+        public synchronized void release() {
+            mReleased = true;
+        }
+
+        @Override
+        public synchronized boolean isPlaying() {
+            return mPlaying;
+        }
+
+        @Override
+        public void setVolume(float volume) {
+        }
+
+        @Override
+        public synchronized long getPlaybackHeadPosition() {
+            return mFramesPlayed;
+        }
+
+        synchronized void setStalled(boolean stalled) {
+            mStalled = stalled;
+            if (!stalled && mPlaying) mFramesPlayed = mFramesWritten;
+        }
+
+        synchronized byte[] getWritten() {
+            return mWritten.toByteArray();
+        }
+
+        synchronized boolean isOverfilled() {
+            return mOverfilled;
+        }
+
+        synchronized boolean isReleased() {
+            return mReleased;
+        }
+    }
+
+    private FakeSink mSink;
+    private AudioOutputRing mRing;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSink = new FakeSink();
+        mRing = new AudioOutputRing(mSink, BUFFER_SIZE, BYTES_PER_FRAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRing.release();
+        super.tearDown();
+    }
+
+    private static byte[] filled(int size, int value) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private void waitForWritten(final int size) throws InterruptedException {
+        assertTrue(CriteriaHelper.pollForCriteria(new Criteria() {
+            @Override
+            public boolean isSatisfied() {
+                return mSink.getWritten().length == size;
+            }
+        }));
+    }
+
+    @SmallTest
+    @Feature({"Media"})
+    public void testWritesReachSinkInOrder() throws Exception {
+        byte[] expected = new byte[3 * BUFFER_SIZE];
+        for (int i = 0; i < 3; ++i) {
+            byte[] data = filled(BUFFER_SIZE, i + 1);
+            System.arraycopy(data, 0, expected, i * BUFFER_SIZE, BUFFER_SIZE);
+            mRing.write(data);
+        }
+        waitForWritten(expected.length);
+        assertTrue(Arrays.equals(expected, mSink.getWritten()));
+        assertEquals(0, mRing.getBufferedBytes());
+    }
+
+    @SmallTest
+    @Feature({"Media"})
+    public void testWriteWaitsForPlayback() throws Exception {
+        mSink.setStalled(true);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                mRing.write(filled(3 * BUFFER_SIZE, 1));
+            }
+        };
+        writer.start();
+        waitForWritten(BUFFER_SIZE);
+        writer.join(100);
+        assertTrue("write() returned with more unplayed audio than the sink holds",
+                writer.isAlive());
+        assertFalse(mSink.isOverfilled());
+
+        mSink.setStalled(false);
+        writer.join();
+        waitForWritten(3 * BUFFER_SIZE);
+        assertFalse(mSink.isOverfilled());
+    }
+
+    @SmallTest
+    @Feature({"Media"})
+    public void testFlushDropsBufferedAudio() throws Exception {
+        mSink.setStalled(true);
+        mRing.write(filled(BUFFER_SIZE, 1));
+        waitForWritten(BUFFER_SIZE);
+        mRing.flush();
+        assertEquals(0, mRing.getBufferedBytes());
+        assertEquals(0, mSink.getWritten().length);
+
+        mSink.setStalled(false);
+        byte[] data = filled(BUFFER_SIZE, 2);
+        mRing.write(data);
+        waitForWritten(BUFFER_SIZE);
+        assertTrue(Arrays.equals(data, mSink.getWritten()));
+        assertEquals(0, mRing.getUnderrunCount());
+    }
+
+    @SmallTest
+    @Feature({"Media"})
+    public void testUnderrunCounted() throws Exception {
+        mRing.write(filled(BUFFER_SIZE, 1));
+        waitForWritten(BUFFER_SIZE);
+        // The underrun is counted once the audio thread, having found the ring empty, gets more
+        // data. Keep feeding it until it has.
+        assertTrue(CriteriaHelper.pollForCriteria(new Criteria() {
+            @Override
+            public boolean isSatisfied() {
+                mRing.write(filled(BYTES_PER_FRAME, 2));
+                return mRing.getUnderrunCount() >= 1;
+            }
+        }));
+    }
+
+    @SmallTest
+    @Feature({"Media"})
+    public void testReleaseUnblocksWrite() throws Exception {
+        mSink.setStalled(true);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                mRing.write(filled(4 * BUFFER_SIZE, 1));
+            }
+        };
+        writer.start();
+        waitForWritten(BUFFER_SIZE);
+        mRing.release();
+        writer.join();
+        assertTrue(mSink.isReleased());
+    }
+}
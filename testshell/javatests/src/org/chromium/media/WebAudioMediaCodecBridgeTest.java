@@ -0,0 +1,168 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.media;
+
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.chromium.base.test.util.Feature;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the progress and cancellation of WebAudioMediaCodecBridge decodes, decoding a
+ * generated WAV file into a Java destination instead of native code.
+ */
+public class WebAudioMediaCodecBridgeTest extends InstrumentationTestCase {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int DURATION_SECONDS = 3;
+    private static final int DATA_SIZE = SAMPLE_RATE * DURATION_SECONDS * 2;
+    private static final long DECODE_ID = 42;
+
+    private static class RecordingDestination implements WebAudioMediaCodecBridge.Destination {
+        int mInitializeCount;
+        int mSampleRate;
+        int mChunkCount;
+        long mDecodedBytes;
+
+        @Override
+        public void initialize(int inputChannelCount, int sampleRate,
+                long durationMicroseconds) {
+            assertEquals(0, mChunkCount);
+            mInitializeCount++;
+            mSampleRate = sampleRate;
+        }
+
+        @Override
+        public void onChunkDecoded(ByteBuffer buf, int size, int inputChannelCount,
+                int outputChannelCount) {
+            assertEquals(1, mInitializeCount);
+            mChunkCount++;
+            mDecodedBytes += size;
+        }
+    }
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("webaudio_test", ".wav",
+                getInstrumentation().getTargetContext().getCacheDir());
+        writeWavFile(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WebAudioMediaCodecBridge.setDecodeProgressListener(null);
+        mFile.delete();
+        super.tearDown();
+    }
+
+    // A mono 16 bit PCM file holding a ramp.
+    private static void writeWavFile(File file) throws IOException {
+        ByteBuffer wav = ByteBuffer.allocate(44 + DATA_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes("US-ASCII")).putInt(36 + DATA_SIZE);
+        wav.put("WAVE".getBytes("US-ASCII"));
+        wav.put("fmt ".getBytes("US-ASCII")).putInt(16);
+        wav.putShort((short) 1).putShort((short) 1).putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2);
+        wav.putShort((short) 2).putShort((short) 16);
+        wav.put("data".getBytes("US-ASCII")).putInt(DATA_SIZE);
+        for (int i = 0; i < DATA_SIZE / 2; ++i) {
+            wav.putShort((short) i);
+        }
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(wav.array());
+        } finally {
+            os.close();
+        }
+    }
+
+    private static boolean canDecodeWav() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && MediaCodecIndex.get().getCodecName("audio/raw", false) != null;
+    }
+
+    private boolean decode(RecordingDestination destination) throws IOException {
+        ParcelFileDescriptor fd =
+                ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            return WebAudioMediaCodecBridge.decode(DECODE_ID, fd.getFd(), mFile.length(),
+                    destination);
+        } finally {
+            fd.close();
+        }
+    }
+
+    @MediumTest
+    @Feature({"Media"})
+    public void testProgressReported() throws Exception {
+        if (!canDecodeWav()) return;
+
+        final List<Long> progress = new ArrayList<Long>();
+        WebAudioMediaCodecBridge.setDecodeProgressListener(
+                new WebAudioMediaCodecBridge.DecodeProgressListener() {
+                    @Override
+                    public void onDecodeProgress(long decodeId, long decodedMicroseconds,
+                            long durationMicroseconds) {
+                        assertEquals(DECODE_ID, decodeId);
+                        progress.add(decodedMicroseconds);
+                    }
+                });
+
+        RecordingDestination destination = new RecordingDestination();
+        assertTrue(decode(destination));
+        assertEquals(SAMPLE_RATE, destination.mSampleRate);
+        assertEquals(DATA_SIZE, destination.mDecodedBytes);
+        // Output buffers are batched, so there is far less than one chunk per buffer.
+        assertTrue(destination.mChunkCount < DATA_SIZE / 4096);
+
+        assertTrue(progress.size() >= destination.mChunkCount);
+        for (int i = 1; i < progress.size(); ++i) {
+            assertTrue(progress.get(i) >= progress.get(i - 1));
+        }
+        assertTrue(progress.get(progress.size() - 1) >= (DURATION_SECONDS - 1) * 1000000L);
+    }
+
+    @MediumTest
+    @Feature({"Media"})
+    public void testCancelStopsHandOff() throws Exception {
+        if (!canDecodeWav()) return;
+
+        WebAudioMediaCodecBridge.setDecodeProgressListener(
+                new WebAudioMediaCodecBridge.DecodeProgressListener() {
+                    @Override
+                    public void onDecodeProgress(long decodeId, long decodedMicroseconds,
+                            long durationMicroseconds) {
+                        WebAudioMediaCodecBridge.cancelDecode(decodeId);
+                    }
+                });
+
+        RecordingDestination destination = new RecordingDestination();
+        assertFalse(decode(destination));
+        assertTrue(destination.mChunkCount <= 1);
+        assertTrue(destination.mDecodedBytes < DATA_SIZE);
+    }
+
+    @MediumTest
+    @Feature({"Media"})
+    public void testCancelUnknownDecodeIsIgnored() throws Exception {
+        if (!canDecodeWav()) return;
+
+        WebAudioMediaCodecBridge.cancelDecode(DECODE_ID + 1);
+        RecordingDestination destination = new RecordingDestination();
+        assertTrue(decode(destination));
+        assertEquals(DATA_SIZE, destination.mDecodedBytes);
+    }
+}
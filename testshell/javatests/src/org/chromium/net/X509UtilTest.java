@@ -0,0 +1,129 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.net;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Base64;
+import android.util.Log;
+
+import org.chromium.base.test.util.Feature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmarks X509Util verifying chains issued by a test root from many threads at once.
+ */
+public class X509UtilTest extends InstrumentationTestCase {
+    private static final String TAG = "X509UtilTest";
+    private static final int CHAIN_COUNT = 1000;
+    private static final int THREAD_COUNT = 16;
+
+    // A root and a server certificate it issued, both valid from 2014 to 2113.
+    private static final String ROOT_CERT =
+            "MIIDAzCCAeugAwIBAgIBATANBgkqhkiG9w0BAQsFADAiMSAwHgYDVQQDDBdYNTA5VXRpbCBCZW5jaG1hcmsg"
+            + "Um9vdDAgFw0xNDAxMDEwMDAwMDBaGA8yMTEzMTIzMTAwMDAwMFowIjEgMB4GA1UEAwwXWDUwOVV0aWwgQmVu"
+            + "Y2htYXJrIFJvb3QwggEiMA0GCSqGSIb3DQEBAQUAA4IBDwAwggEKAoIBAQCTCkEcwJrwZPjwbrVM7YMTSTXC"
+            + "B5S5xuNRV82Z4z7cFy8zsHDAOgq3whzBqnM74KWb/utQ+io2ASKq4NX7GnF8bw93DZsB0a1Hip4O8kUjsJ2n"
+            + "oHO67QKzMvCRqQwV+pJ5gm1qDGWoMYInP/4M3X+/grXJJrnVvny4NHOcc1lzN/nxF+E0kQyVpZTwRUaclDAp"
+            + "0FLqmsfdpGm58PqCNNHvgCU2l1IGpv5xKTGcxavARoOFql9l4xeTonX9rVCRA7Aumq9nYTy5m0Oyv5LBlwdk"
+            + "nj911OtH2ag8RA5lv92Uw96sVIa5tvoPVaLLdpVxY9otm/ZBxZIsHU5/HCdBlkYhAgMBAAGjQjBAMA8GA1Ud"
+            + "EwEB/wQFMAMBAf8wDgYDVR0PAQH/BAQDAgEGMB0GA1UdDgQWBBQbRPYpVDwKMmHYQwqm1MMjzBcdijANBgkq"
+            + "hkiG9w0BAQsFAAOCAQEAdpXwRMzb+nS/86zpZjWqis/Pki4L5i6rKvAS+ULYr0JNWCCm7oiGP57OpzEsGuUW"
+            + "/4aByb5liNYFhLlArHMTwoqqCZo5a/1uFgv9C8eqvjm19JviSgo57LJvjSQqNmIvhgnUoO7WTo7Z25qPcPH2"
+            + "+imXFZhyEhXH4g6Lqrn8Tbj/ueD5Yj6t+cJIbGTE4+RaqOsmMydDfH6h4wIFXz41ni30RiCd8N63FsifEo7o"
+            + "f8C2X27ZV2DrMHEZqtFl6u357g5ejj12d63yNd/ZGxjaTojaLH7CTlPbw/pxKiuvi8R6s4IhcnpmmMGt/xk1"
+            + "11GIDeC/DDzKwQfOvkZK0AEoOA==";
+    private static final String SERVER_CERT =
+            "MIIDSjCCAjKgAwIBAgIBAjANBgkqhkiG9w0BAQsFADAiMSAwHgYDVQQDDBdYNTA5VXRpbCBCZW5jaG1hcmsg"
+            + "Um9vdDAgFw0xNDAxMDEwMDAwMDBaGA8yMTEzMTIzMTAwMDAwMFowGTEXMBUGA1UEAwwOYmVuY2htYXJrLnRl"
+            + "c3QwggEiMA0GCSqGSIb3DQEBAQUAA4IBDwAwggEKAoIBAQDp/eoILG7/6GcetYsIIC5FDQBJx6dr0iXy85Vw"
+            + "vZC8gDH72YLDdGTTu084PuBfelunUhpZEg6Nj1r+GOoinIrsI+OUdTewi3T4L3VQSCqgWvwQE/nP1WNpta9U"
+            + "NrzswSef3z1fCtZ1fAc322+EfmOzaI6sRTz/NPr64GpQM8E56B+gsKPieP8ugANa73J/BeNXVg6/Mg4Dbekm"
+            + "W/eZ1YzG+o1qJtfoXtgp7dbZi/55/u44CWAO5LMDyLmGgG6Pjjw62wuyQl4VljcBaWwbiICm+S/lUVMSY+pA"
+            + "PifWodNgaIk6iXTm5u75fpO9PKyehCHDW62C4bahuf397q/+SaldAgMBAAGjgZEwgY4wDAYDVR0TAQH/BAIw"
+            + "ADAOBgNVHQ8BAf8EBAMCBaAwEwYDVR0lBAwwCgYIKwYBBQUHAwEwGQYDVR0RBBIwEIIOYmVuY2htYXJrLnRl"
+            + "c3QwHwYDVR0jBBgwFoAUG0T2KVQ8CjJh2EMKptTDI8wXHYowHQYDVR0OBBYEFDMpNHLVn0oS7j26XX4GFUuM"
+            + "WrfYMA0GCSqGSIb3DQEBCwUAA4IBAQB7YzaMmRr2OL6cmREEy/ctCaE4fE/NUen62KUgjJC/M0J7ABQc7cXd"
+            + "eAryXePtFgcap4rHuOwlSd4jA/nEAX8YHcduDTsO9XvwNONz+RyHkKnCpljIJZ54mkSKJerq5U2a62nDWYvI"
+            + "diWJlY78orv4UYFueRhM4gZ1T8M9dCmLfvqrpZP6jXg5ALq9VQ9OpkwoNzO/hSR0qmBO1kxAj3PJdKhKCfzt"
+            + "vJ0BE6VE9lp9IQU/Vbsz8Xbib5O1wiITiRL2Co/rqkl7oDRizr8NzLAHZUdJpD9+6oVwGOIOaiPHQPSeJ/c6"
+            + "vRSQzo5Y8Zk4Mph3a+WvY9GM9HDB1dl4sXzq";
+
+    private byte[][] mCertChain;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        X509Util.setDisableNativeCodeForTest(true);
+        X509Util.addTestRootCertificate(Base64.decode(ROOT_CERT, Base64.DEFAULT));
+        mCertChain = new byte[][] { Base64.decode(SERVER_CERT, Base64.DEFAULT) };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        X509Util.clearTestRootCertificates();
+        super.tearDown();
+    }
+
+    // Each host gets its own verified chain cache entry, so every chain is really verified.
+    private Callable<Integer> createVerification(final String host) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return X509Util.verifyServerCertificates(mCertChain, "RSA", host).getStatus();
+            }
+        };
+    }
+
+    // Verifies CHAIN_COUNT chains on |threadCount| threads and returns the time taken.
+    private long verifyChains(int threadCount, String hostPrefix) throws Exception {
+        List<Callable<Integer>> verifications = new ArrayList<Callable<Integer>>(CHAIN_COUNT);
+        for (int i = 0; i < CHAIN_COUNT; ++i) {
+            verifications.add(createVerification(hostPrefix + i + ".test"));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            long startTimeMs = System.currentTimeMillis();
+            List<Future<Integer>> results = executor.invokeAll(verifications);
+            long elapsedMs = System.currentTimeMillis() - startTimeMs;
+            for (Future<Integer> result : results) {
+                assertEquals(CertVerifyStatusAndroid.VERIFY_OK, (int) result.get());
+            }
+            return elapsedMs;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @MediumTest
+    @Feature({"Network"})
+    public void testVerifyChainsInParallel() throws Exception {
+        // Warms up the trust managers and the certificate factory.
+        assertEquals(CertVerifyStatusAndroid.VERIFY_OK,
+                (int) createVerification("warmup.test").call());
+
+        long serialMs = verifyChains(1, "serial");
+        long parallelMs = verifyChains(THREAD_COUNT, "parallel");
+        Log.i(TAG, CHAIN_COUNT + " chains verified in " + serialMs + " ms on one thread, "
+                + parallelMs + " ms on " + THREAD_COUNT + " threads, "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+    }
+
+    @MediumTest
+    @Feature({"Network"})
+    public void testClearedTestRootIsNotTrusted() throws Exception {
+        assertEquals(CertVerifyStatusAndroid.VERIFY_OK,
+                (int) createVerification("before.test").call());
+        X509Util.clearTestRootCertificates();
+        assertEquals(CertVerifyStatusAndroid.VERIFY_NO_TRUSTED_ROOT,
+                (int) createVerification("after.test").call());
+    }
+}